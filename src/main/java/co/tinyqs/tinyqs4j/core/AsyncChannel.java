@@ -0,0 +1,33 @@
+package co.tinyqs.tinyqs4j.core;
+
+import co.tinyqs.tinyqs4j.api.ByteMessage;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Non-blocking counterpart to Channel. Operations are multiplexed onto the context's shared pipeline. Futures 
+ * are completed on the pipeline's callback pool, not the thread writing to redis, so listeners attached with a 
+ * same-thread executor may block or make synchronous calls, though each one holds a callback thread meanwhile.
+ */
+public interface AsyncChannel
+{
+    /**
+     * @return future of the uuid assigned to the message, or null if it had already expired
+     */
+    public ListenableFuture<String> sendAsync(ByteMessage message);
+    
+    /**
+     * @return future of the next available message, or null if the channel is empty
+     */
+    public ListenableFuture<ByteMessage> receiveAsync();
+    
+    /**
+     * @return future of whether the message was still held by the channel
+     */
+    public ListenableFuture<Boolean> acknowledgeAsync(ByteMessage message);
+    
+    /**
+     * @return future of whether the message was leased and has been released
+     */
+    public ListenableFuture<Boolean> releaseAsync(ByteMessage message);
+}
@@ -0,0 +1,327 @@
+package co.tinyqs.tinyqs4j.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import co.tinyqs.tinyqs4j.api.ByteMessage;
+import co.tinyqs.tinyredis.RedisConnection;
+import co.tinyqs.tinyredis.RedisReply;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Blocks on one channel on behalf of every thread in this context waiting to receive from it, so waiting threads
+ * share one connection instead of holding one each. Waiters are served in the order they arrived, each with the
+ * messages leased for it. The poller gives up its connection as soon as nobody is waiting, and stops after
+ * IDLE_EXIT with nobody waiting.
+ */
+class ChannelPoller implements Runnable
+{
+    private static final int POLL_TIMEOUT_SEC = 1;
+    private static final int MAX_BATCH = 1000;
+    private static final long IDLE_EXIT = TimeUnit.SECONDS.toMillis(5);
+    private static final long ERROR_DELAY = TimeUnit.SECONDS.toMillis(1);
+    private static final Logger LOG = Logger.getLogger(ChannelPoller.class.getName());
+
+    private final InternalContext context;
+    private final RedisChannel channel;
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+    private boolean stopped;
+
+    ChannelPoller(InternalContext context, RedisChannel channel)
+    {
+        this.context = context;
+        this.channel = channel;
+        this.worker = new Thread(this, "tinyqs-poller-" + channel.getName());
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    synchronized boolean isStopped()
+    {
+        return stopped;
+    }
+
+    /**
+     * Waits up to timeoutSec for the next message to arrive on the channel, then leases it and up to max - 1 more
+     *
+     * @return the leased messages, an empty list if none arrived in time, or null if the poller has stopped and 
+     * a new one must be used
+     */
+    List<ByteMessage> await(int max, int timeoutSec, long visibilityTimeout) throws IOException
+    {
+        Waiter waiter = new Waiter(max, visibilityTimeout);
+        synchronized (this)
+        {
+            if (stopped)
+            {
+                return null;
+            }
+            waiters.add(waiter);
+            notifyAll();
+        }
+        try
+        {
+            return waiter.future.get(timeoutSec, TimeUnit.SECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            return _abandon(waiter);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return _abandon(waiter);
+        }
+        catch (ExecutionException e)
+        {
+            throw _unwrap(e);
+        }
+    }
+
+    private static IOException _unwrap(ExecutionException e)
+    {
+        return e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    }
+
+    /**
+     * Stops waiting, keeping any messages that were leased for the waiter in the meantime
+     */
+    private List<ByteMessage> _abandon(Waiter waiter) throws IOException
+    {
+        waiters.remove(waiter);
+        if (waiter.future.cancel(false))
+        {
+            return Collections.emptyList();
+        }
+        try
+        {
+            return Uninterruptibles.getUninterruptibly(waiter.future);
+        }
+        catch (ExecutionException e)
+        {
+            throw _unwrap(e);
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        RedisConnection conn = null;
+        while (running)
+        {
+            try
+            {
+                Waiter waiter = waiters.peek();
+                if (waiter == null)
+                {
+                    conn = _release(conn);
+                    if (_idle())
+                    {
+                        break;
+                    }
+                    continue;
+                }
+                if (waiter.future.isDone())
+                {
+                    waiters.remove(waiter);
+                    continue;
+                }
+                if (conn == null)
+                {
+                    conn = context.getConnection();
+                }
+                String internalName = channel.getInternalName();
+                RedisReply reply = conn.sendCommand("BRPOPLPUSH %s:active %s:reserved %s", internalName, internalName, POLL_TIMEOUT_SEC);
+                if (reply.isError())
+                {
+                    throw new IOException("Unexpected error from receive: " + reply.getString());
+                }
+                if (!reply.isString())
+                {
+                    continue;
+                }
+                _dispatch(conn, reply.getString());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (Exception e)
+            {
+                LOG.log(Level.WARNING, "Polling channel " + channel.getName() + " failed", e);
+                conn = _destroy(conn);
+                try
+                {
+                    Thread.sleep(ERROR_DELAY);
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        _release(conn);
+        synchronized (this)
+        {
+            stopped = true;
+        }
+        for (Waiter waiter : waiters)
+        {
+            waiter.future.setException(new IOException("Poller is closed"));
+        }
+    }
+
+    /**
+     * Leases uuid, which a blocking pop just moved to reserved, along with whatever else is ready for the waiters 
+     * at the head of the queue that share a visibility timeout, and hands each waiter its share in one round trip.
+     * Messages left over, or leased for a waiter that gave up in the meantime, are released. If nobody is left 
+     * waiting uuid is still leased and released so it isn't stranded in reserved.
+     */
+    private void _dispatch(RedisConnection conn, String uuid) throws IOException
+    {
+        Waiter head = waiters.peek();
+        long visibilityTimeout = head == null ? channel.getVisibilityTimeout() : head.visibilityTimeout;
+        List<Waiter> served = new ArrayList<>();
+        int wanted = 0;
+        for (Waiter waiter : waiters)
+        {
+            if (wanted >= MAX_BATCH)
+            {
+                break;
+            }
+            if (waiter.visibilityTimeout == visibilityTimeout && !waiter.future.isDone())
+            {
+                served.add(waiter);
+                wanted += waiter.max;
+            }
+        }
+        List<ByteMessage> messages = channel.claim(conn, uuid, Math.max(wanted, 1), visibilityTimeout);
+        List<ByteMessage> unclaimed = new ArrayList<>();
+        int index = 0;
+        for (Waiter waiter : served)
+        {
+            if (index >= messages.size())
+            {
+                break;
+            }
+            List<ByteMessage> share = new ArrayList<>(messages.subList(index, Math.min(index + waiter.max, messages.size())));
+            index += share.size();
+            waiters.remove(waiter);
+            if (!waiter.future.set(share))
+            {
+                unclaimed.addAll(share);
+            }
+        }
+        unclaimed.addAll(messages.subList(index, messages.size()));
+        if (!unclaimed.isEmpty())
+        {
+            try
+            {
+                channel.releaseAll(unclaimed);
+            }
+            catch (IOException e)
+            {
+                LOG.log(Level.WARNING, unclaimed.size() + " messages on channel " + channel.getName() + " stay leased until they time out", e);
+            }
+        }
+    }
+
+    /**
+     * Waits for a waiter to arrive
+     *
+     * @return true if the poller stopped because nobody arrived
+     */
+    private boolean _idle() throws InterruptedException
+    {
+        synchronized (this)
+        {
+            if (waiters.isEmpty() && running)
+            {
+                wait(IDLE_EXIT);
+            }
+            if (!waiters.isEmpty())
+            {
+                return false;
+            }
+            stopped = true;
+        }
+        context.pollerStopped(channel, this);
+        return true;
+    }
+
+    private RedisConnection _release(RedisConnection conn)
+    {
+        if (conn != null)
+        {
+            try
+            {
+                context.releaseConnection(conn);
+            }
+            catch (Exception e)
+            {
+                LOG.log(Level.WARNING, "Unable to return poller connection to the pool", e);
+            }
+        }
+        return null;
+    }
+
+    private RedisConnection _destroy(RedisConnection conn)
+    {
+        if (conn != null)
+        {
+            try
+            {
+                context.destroyConnection(conn);
+            }
+            catch (Exception e)
+            {
+                LOG.log(Level.FINE, "Unable to destroy broken poller connection", e);
+            }
+        }
+        return null;
+    }
+
+    void close()
+    {
+        running = false;
+        synchronized (this)
+        {
+            notifyAll();
+        }
+        try
+        {
+            worker.join(TimeUnit.SECONDS.toMillis(POLL_TIMEOUT_SEC + 1));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Waiter
+    {
+        final int max;
+        final long visibilityTimeout;
+        final SettableFuture<List<ByteMessage>> future = SettableFuture.create();
+
+        Waiter(int max, long visibilityTimeout)
+        {
+            this.max = max;
+            this.visibilityTimeout = visibilityTimeout;
+        }
+    }
+}
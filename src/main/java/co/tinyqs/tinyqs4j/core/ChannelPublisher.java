@@ -0,0 +1,177 @@
+package co.tinyqs.tinyqs4j.core;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import co.tinyqs.tinyqs4j.api.ByteMessage;
+import co.tinyqs.tinyqs4j.api.Message;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Reactive Streams view of a channel. Each subscriber gets its own subscription, and messages are only leased
+ * from the channel as the subscriber requests them, so a subscriber never holds more leases than its outstanding
+ * demand. Delivered messages stay leased until the subscriber acknowledges or releases them on the channel.
+ *
+ * The stream never completes on its own. It ends with onError if a message can't be received or deserialized,
+ * and without a signal if onNext throws. Messages leased but not yet delivered when a subscription ends are
+ * released.
+ */
+public class ChannelPublisher<T> implements Publisher<Message<T>>
+{
+    private static final int MAX_BATCH = 100;
+    private static final int POLL_TIMEOUT_SEC = 1;
+    private static final long IDLE_WAIT = TimeUnit.SECONDS.toMillis(1);
+
+    private final InternalContext context;
+    private final RedisChannel channel;
+    private final Class<? extends T> msgClass;
+
+    ChannelPublisher(InternalContext context, RedisChannel channel, Class<? extends T> msgClass)
+    {
+        Preconditions.checkArgument(context.getSerializer().canDeserialize(msgClass), "Must be able to deserialize the message class");
+        this.context = context;
+        this.channel = channel;
+        this.msgClass = msgClass;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Message<T>> subscriber)
+    {
+        Preconditions.checkNotNull(subscriber, "Subscriber may not be null");
+        ChannelSubscription subscription = new ChannelSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.worker.start();
+    }
+
+    /**
+     * Leases and delivers messages on a thread of its own while there is demand
+     */
+    private class ChannelSubscription implements Subscription, Runnable
+    {
+        private final Subscriber<? super Message<T>> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final Thread worker;
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+
+        ChannelSubscription(Subscriber<? super Message<T>> subscriber)
+        {
+            this.subscriber = subscriber;
+            this.worker = new Thread(this, "tinyqs-publisher-" + channel.getName());
+            this.worker.setDaemon(true);
+        }
+
+        @Override
+        public void request(long n)
+        {
+            if (n <= 0)
+            {
+                invalidRequest = new IllegalArgumentException("Request must be positive, was " + n);
+            }
+            else
+            {
+                long current;
+                long next;
+                do
+                {
+                    current = demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                }
+                while (!demand.compareAndSet(current, next));
+            }
+            synchronized (this)
+            {
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void cancel()
+        {
+            cancelled = true;
+            synchronized (this)
+            {
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (_awaitDemand())
+                {
+                    List<ByteMessage> messages = channel.receive((int) Math.min(demand.get(), MAX_BATCH), POLL_TIMEOUT_SEC);
+                    for (int i = 0; i < messages.size(); i++)
+                    {
+                        if (cancelled)
+                        {
+                            channel.releaseAll(messages.subList(i, messages.size()));
+                            break;
+                        }
+                        ByteMessage message = messages.get(i);
+                        Message<T> typed;
+                        try
+                        {
+                            typed = Message.wrap(message, context.getSerializer().deserialize(message.getBytes(), msgClass));
+                        }
+                        catch (Exception e)
+                        {
+                            channel.releaseAll(messages.subList(i, messages.size()));
+                            throw e;
+                        }
+                        if (demand.get() != Long.MAX_VALUE)
+                        {
+                            demand.decrementAndGet();
+                        }
+                        try
+                        {
+                            subscriber.onNext(typed);
+                        }
+                        catch (RuntimeException e)
+                        {
+                            // A subscriber that throws is treated as having cancelled (rule 2.13), not signalled
+                            cancelled = true;
+                            channel.releaseAll(messages.subList(i + 1, messages.size()));
+                            return;
+                        }
+                    }
+                }
+                if (invalidRequest != null)
+                {
+                    subscriber.onError(invalidRequest);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (Exception e)
+            {
+                if (!cancelled)
+                {
+                    subscriber.onError(e);
+                }
+            }
+        }
+
+        /**
+         * @return true once there is demand, or false if the subscription has ended
+         */
+        private synchronized boolean _awaitDemand() throws InterruptedException
+        {
+            while (!cancelled && invalidRequest == null && demand.get() == 0)
+            {
+                wait(IDLE_WAIT);
+            }
+            return !cancelled && invalidRequest == null;
+        }
+    }
+}
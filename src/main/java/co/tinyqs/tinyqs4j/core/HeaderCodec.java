@@ -0,0 +1,404 @@
+package co.tinyqs.tinyqs4j.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Compact binary encoding for message headers.
+ *
+ * Layout: marker byte, entry count (varint), then per entry a key and a typed value. Keys found in
+ * INTERNED_KEYS are written as their index. Headers written before this codec existed are JSON objects,
+ * which always start with '{', so the marker byte tells the two apart on read. Numbers decode to the same types
+ * from either format, except that JSON can't tell a Long that fits in an int from an Integer, nor a BigDecimal
+ * with a fraction from a Double. JSON numbers used to decode as BigDecimal, so readers of old headers should
+ * treat them as Number rather than cast them.
+ */
+public class HeaderCodec
+{
+    private static final byte BINARY_MARKER = 0x01;
+
+    private static final byte KEY_INTERNED = 0;
+    private static final byte KEY_STRING = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_TRUE = 1;
+    private static final byte TYPE_FALSE = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_DOUBLE = 5;
+    private static final byte TYPE_STRING = 6;
+    private static final byte TYPE_DECIMAL = 7;
+
+    /**
+     * Common header names written as a single byte. Only ever append to this list - indexes are stored in redis.
+     */
+    private static final List<String> INTERNED_KEYS = ImmutableList.of(
+            RedisConversation.H_CLAIM_CHECK,
+            "Content-Type",
+            "Content-Encoding",
+            "type",
+            "replyTo",
+            ReplyDispatcher.H_CORRELATION_ID,
+            ReplyDispatcher.H_REPLY_CHANNEL,
+            RedisConversation.H_FAST_REPLY);
+
+    private static final byte[] EMPTY = new byte[] {BINARY_MARKER, 0};
+
+    private HeaderCodec()
+    {
+    }
+
+    /**
+     * Encodes headers in the binary format
+     *
+     * @throws IllegalArgumentException if any value is not a string, number, boolean or null, since no reader could
+     * decode it
+     */
+    public static byte[] encode(Map<String, Object> headers)
+    {
+        if (headers == null || headers.isEmpty())
+        {
+            return EMPTY;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * headers.size());
+        out.write(BINARY_MARKER);
+        _writeVarint(out, headers.size());
+        for (Entry<String, Object> entry : headers.entrySet())
+        {
+            int interned = INTERNED_KEYS.indexOf(entry.getKey());
+            if (interned >= 0)
+            {
+                out.write(KEY_INTERNED);
+                out.write(interned);
+            }
+            else
+            {
+                out.write(KEY_STRING);
+                _writeString(out, entry.getKey());
+            }
+            Preconditions.checkArgument(_writeValue(out, entry.getValue()), "Unsupported value for header %s: %s", entry.getKey(), entry.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Checks up front that headers can be encoded, so a message is refused before anything is sent
+     *
+     * @throws IllegalArgumentException if any value is not a string, number, boolean or null
+     */
+    public static void checkHeaders(Map<String, Object> headers)
+    {
+        if (headers != null)
+        {
+            for (Entry<String, Object> entry : headers.entrySet())
+            {
+                Preconditions.checkArgument(_isSupported(entry.getValue()), "Unsupported value for header %s: %s", entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static boolean _isSupported(Object value)
+    {
+        return value == null || value instanceof Boolean || value instanceof Integer || value instanceof Short || value instanceof Byte
+                || value instanceof Long || value instanceof Double || value instanceof Float || value instanceof BigDecimal
+                || value instanceof BigInteger || value instanceof CharSequence || value instanceof Character;
+    }
+
+    /**
+     * @return a read-only view of the encoded headers that is only decoded when first accessed
+     */
+    public static Map<String, Object> decode(byte[] bytes, ObjectMapper mapper)
+    {
+        return new LazyHeaders(bytes, mapper);
+    }
+
+    private static boolean _writeValue(ByteArrayOutputStream out, Object value)
+    {
+        if (value == null)
+        {
+            out.write(TYPE_NULL);
+        }
+        else if (value instanceof Boolean)
+        {
+            out.write((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+        }
+        else if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+        {
+            out.write(TYPE_INT);
+            _writeVarint(out, _zigzag(((Number) value).longValue()));
+        }
+        else if (value instanceof Long)
+        {
+            out.write(TYPE_LONG);
+            _writeVarint(out, _zigzag((Long) value));
+        }
+        else if (value instanceof Double || value instanceof Float)
+        {
+            out.write(TYPE_DOUBLE);
+            out.write(ByteBuffer.allocate(8).putDouble(((Number) value).doubleValue()).array(), 0, 8);
+        }
+        else if (value instanceof BigDecimal || value instanceof BigInteger)
+        {
+            out.write(TYPE_DECIMAL);
+            _writeString(out, value.toString());
+        }
+        else if (value instanceof CharSequence || value instanceof Character)
+        {
+            out.write(TYPE_STRING);
+            _writeString(out, value.toString());
+        }
+        else
+        {
+            return false;
+        }
+        return true;
+    }
+
+    private static void _writeString(ByteArrayOutputStream out, String value)
+    {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        _writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void _writeVarint(ByteArrayOutputStream out, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long _zigzag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static Map<String, Object> _decodeBinary(ByteBuffer in)
+    {
+        in.get();
+        int count = (int) _readVarint(in);
+        Map<String, Object> headers = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++)
+        {
+            String key;
+            byte keyType = in.get();
+            if (keyType == KEY_INTERNED)
+            {
+                key = INTERNED_KEYS.get(in.get());
+            }
+            else
+            {
+                key = _readString(in);
+            }
+            headers.put(key, _readValue(in));
+        }
+        return headers;
+    }
+
+    private static Object _readValue(ByteBuffer in)
+    {
+        byte type = in.get();
+        switch (type)
+        {
+        case TYPE_NULL:
+            return null;
+        case TYPE_TRUE:
+            return Boolean.TRUE;
+        case TYPE_FALSE:
+            return Boolean.FALSE;
+        case TYPE_INT:
+            return (int) _unzigzag(_readVarint(in));
+        case TYPE_LONG:
+            return _unzigzag(_readVarint(in));
+        case TYPE_DOUBLE:
+            return in.getDouble();
+        case TYPE_STRING:
+            return _readString(in);
+        case TYPE_DECIMAL:
+            return new BigDecimal(_readString(in));
+        default:
+            throw new IllegalArgumentException("Unknown header value type " + type);
+        }
+    }
+
+    private static String _readString(ByteBuffer in)
+    {
+        int length = (int) _readVarint(in);
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, Charsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static long _readVarint(ByteBuffer in)
+    {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static long _unzigzag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static Map<String, Object> _decodeJson(byte[] bytes, ObjectMapper mapper) throws IOException
+    {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        Iterator<Entry<String, JsonNode>> iter = mapper.readTree(bytes).fields();
+        while (iter.hasNext())
+        {
+            Entry<String, JsonNode> entry = iter.next();
+            if (entry.getValue().isNumber())
+            {
+                headers.put(entry.getKey(), _number(entry.getValue()));
+            }
+            else if (entry.getValue().isNull())
+            {
+                headers.put(entry.getKey(), null);
+            }
+            else if (entry.getValue().isBoolean())
+            {
+                headers.put(entry.getKey(), entry.getValue().booleanValue());
+            }
+            else if (entry.getValue().isTextual())
+            {
+                headers.put(entry.getKey(), entry.getValue().textValue());
+            }
+            else
+            {
+                throw new JsonMappingException("Unable to construct valid value from entry " + entry.getValue().getNodeType());
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * @return the number as the type the binary format decodes it to: Integer or Long for whole numbers that fit,
+     * Double for floating point, otherwise BigDecimal
+     */
+    private static Number _number(JsonNode node)
+    {
+        if (node.isInt())
+        {
+            return node.intValue();
+        }
+        if (node.isLong())
+        {
+            return node.longValue();
+        }
+        if (node.isDouble() || node.isFloat())
+        {
+            return node.doubleValue();
+        }
+        return node.decimalValue();
+    }
+
+    /**
+     * Read-only header map that defers decoding until its contents are first needed
+     */
+    private static class LazyHeaders extends AbstractMap<String, Object>
+    {
+        private final byte[] bytes;
+        private final ObjectMapper mapper;
+        private volatile Map<String, Object> decoded;
+
+        LazyHeaders(byte[] bytes, ObjectMapper mapper)
+        {
+            this.bytes = bytes;
+            this.mapper = mapper;
+        }
+
+        private Map<String, Object> _decoded()
+        {
+            Map<String, Object> result = decoded;
+            if (result == null)
+            {
+                try
+                {
+                    if (bytes.length == 0)
+                    {
+                        result = Collections.emptyMap();
+                    }
+                    else if (bytes[0] == BINARY_MARKER)
+                    {
+                        result = _decodeBinary(ByteBuffer.wrap(bytes));
+                    }
+                    else
+                    {
+                        result = _decodeJson(bytes, mapper);
+                    }
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    throw new IllegalStateException("Malformed message headers", e);
+                }
+                result = Collections.unmodifiableMap(result);
+                decoded = result;
+            }
+            return result;
+        }
+
+        @Override
+        public boolean isEmpty()
+        {
+            if (decoded == null && bytes.length > 1 && bytes[0] == BINARY_MARKER)
+            {
+                return bytes[1] == 0;
+            }
+            return _decoded().isEmpty();
+        }
+
+        @Override
+        public int size()
+        {
+            return _decoded().size();
+        }
+
+        @Override
+        public boolean containsKey(Object key)
+        {
+            return _decoded().containsKey(key);
+        }
+
+        @Override
+        public Object get(Object key)
+        {
+            return _decoded().get(key);
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet()
+        {
+            return _decoded().entrySet();
+        }
+    }
+}
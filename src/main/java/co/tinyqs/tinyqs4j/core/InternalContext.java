@@ -1,12 +1,20 @@
 package co.tinyqs.tinyqs4j.core;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import co.tinyqs.tinyqs4j.api.ByteMessage;
 import co.tinyqs.tinyredis.RedisConnection;
+import co.tinyqs.tinyredis.RedisReply;
 import co.tinyqs.tinyredis.RedisSerializer;
 import co.tinyqs.tinyredis.pool.RedisConfiguration;
 import co.tinyqs.tinyredis.pool.RedisConnectionPool;
@@ -18,20 +26,44 @@ import com.google.common.collect.ImmutableList;
 
 public class InternalContext
 {
+    /**
+     * Redis set of every channel name that has been sent to, so any client can tick it
+     */
+    public static final String CHANNEL_REGISTRY = "channels";
+    
+    /**
+     * Redis set of every topic holding payloads fanned out by reference, so any client can reap them
+     */
+    public static final String TOPIC_REGISTRY = "topics";
+    private static final Logger LOG = Logger.getLogger(InternalContext.class.getName());
+    private static final long DISCOVERY_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+    private static final long PAYLOAD_CHECK_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private static final int DEFAULT_TICK_THREADS = 4;
+    private static final int DEFAULT_TICK_BATCH_SIZE = 1000;
+    
     private final RedisConnectionPool connectionPool;
     private final ScheduledExecutorService service;
     private final ObjectMapper mapper;
     private final ConcurrentHashMap<String, RedisChannel> channels = new ConcurrentHashMap<String,RedisChannel>();
     private final SerializationModule serialization;
+    private final TickScheduler tickScheduler;
+    private RedisPipeline pipeline;
+    private ReplyDispatcher replyDispatcher;
+    private final ConcurrentHashMap<String, ChannelPoller> pollers = new ConcurrentHashMap<>();
+    private boolean closed;
+    private volatile boolean autoPipelining = false;
+    private volatile int tickBatchSize = DEFAULT_TICK_BATCH_SIZE;
+    private final String clientId = UUID.randomUUID().toString();
     
     public InternalContext(RedisConfiguration config)
     {        
-        this.service = Preconditions.checkNotNull(Executors.newSingleThreadScheduledExecutor());
+        this.service = Preconditions.checkNotNull(Executors.newScheduledThreadPool(DEFAULT_TICK_THREADS));
         this.mapper = new ObjectMapper();                
         config.setSerializers(ImmutableList.<RedisSerializer>of(new InternalRedisSerializer(mapper)));
         this.connectionPool = Preconditions.checkNotNull(new RedisConnectionPool(config, Scripts.ALL));   
         this.serialization = new JacksonSerializationModule(this.mapper);
-        _scheduleTicks();
+        this.tickScheduler = new TickScheduler(this.service);
+        _scheduleDiscovery();
     }
     
     public InternalContext(RedisConnectionPool connectionPool, ScheduledExecutorService service, ObjectMapper mapper, SerializationModule serialization)
@@ -40,22 +72,113 @@ public class InternalContext
         this.service = Preconditions.checkNotNull(service);
         this.mapper = Preconditions.checkNotNull(mapper);
         this.serialization = Preconditions.checkNotNull(serialization);
-        _scheduleTicks();
+        this.tickScheduler = new TickScheduler(this.service);
+        _scheduleDiscovery();
     }
     
-    private void _scheduleTicks()
+    private void _scheduleDiscovery()
     {
         service.scheduleWithFixedDelay(new Runnable(){
 
             @Override
             public void run()
             {
-                for (RedisChannel channel : channels.values())
+                _discoverChannels();
+                _reapPayloads();
+            }
+        }, 0, DISCOVERY_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Registers every channel known to redis so that channels no live client has touched still get ticked
+     */
+    private void _discoverChannels()
+    {
+        try
+        {
+            RedisConnection conn = getConnection();
+            try
+            {
+                RedisReply reply = conn.sendCommand("SMEMBERS %s", CHANNEL_REGISTRY);
+                if (reply.isArray())
+                {
+                    for (RedisReply element : reply.getElements())
+                    {
+                        if (element.isString())
+                        {
+                            getChannel(element.getString());
+                        }
+                    }
+                }
+                releaseConnection(conn);
+                conn = null;
+            }
+            finally
+            {
+                if (conn != null)
                 {
-                    channel.tick();
+                    destroyConnection(conn);
                 }
             }
-        }, 0, 1, TimeUnit.SECONDS);
+        }
+        catch (Exception e)
+        {
+            // Tried again on the next discovery interval, but channels only other clients know of go unticked until then
+            LOG.log(Level.WARNING, "Channel discovery failed", e);
+        }
+    }
+    
+    /**
+     * Deletes payloads fanned out by reference that were left behind by subscriber channels whose keys were 
+     * deleted or expired. Each payload is checked at most once per PAYLOAD_CHECK_INTERVAL.
+     */
+    private void _reapPayloads()
+    {
+        try
+        {
+            List<String> topics = new ArrayList<>();
+            RedisConnection conn = getConnection();
+            try
+            {
+                RedisReply reply = conn.sendCommand("SMEMBERS %s", TOPIC_REGISTRY);
+                if (reply.isArray())
+                {
+                    for (RedisReply element : reply.getElements())
+                    {
+                        if (element.isString())
+                        {
+                            topics.add(element.getString());
+                        }
+                    }
+                }
+                releaseConnection(conn);
+                conn = null;
+            }
+            finally
+            {
+                if (conn != null)
+                {
+                    destroyConnection(conn);
+                }
+            }
+            long before = System.currentTimeMillis() - PAYLOAD_CHECK_INTERVAL;
+            for (String topic : topics)
+            {
+                new RedisTopic(this, topic).reapPayloads(before, tickBatchSize);
+            }
+        }
+        catch (Exception e)
+        {
+            LOG.log(Level.WARNING, "Payload reaping failed", e);
+        }
+    }
+    
+    /**
+     * @return identifier of this context, used as the owner of the tick leases it holds
+     */
+    public String getClientId()
+    {
+        return clientId;
     }
     
     public RedisConnection getConnection() throws Exception
@@ -73,6 +196,67 @@ public class InternalContext
         connectionPool.invalidateObject(conn);
     }
     
+    /**
+     * @return the shared pipelined connection used by the async API, created on first use
+     */
+    public synchronized RedisPipeline getPipeline()
+    {
+        if (pipeline == null)
+        {
+            pipeline = new RedisPipeline(this);
+        }
+        return pipeline;
+    }
+    
+    /**
+     * @return the executor shared by tick scheduling and other timed work of this context
+     */
+    ScheduledExecutorService getScheduler()
+    {
+        return service;
+    }
+    
+    /**
+     * @return the receiver of replies to requests made through this context, started on first use
+     */
+    synchronized ReplyDispatcher getReplyDispatcher()
+    {
+        if (replyDispatcher == null)
+        {
+            replyDispatcher = new ReplyDispatcher(this);
+        }
+        return replyDispatcher;
+    }
+    
+    /**
+     * When enabled, synchronous non-blocking operations from concurrent callers are queued on the shared 
+     * pipeline and written together instead of each borrowing a pooled connection
+     */
+    public void setAutoPipelining(boolean autoPipelining)
+    {
+        this.autoPipelining = autoPipelining;
+    }
+    
+    public boolean isAutoPipelining()
+    {
+        return autoPipelining;
+    }
+    
+    /**
+     * Maximum number of entries a single tick moves per list or set. Larger backlogs are worked off over 
+     * successive ticks so no one script call blocks redis for long.
+     */
+    public void setTickBatchSize(int tickBatchSize)
+    {
+        Preconditions.checkArgument(tickBatchSize > 0, "Tick batch size must be positive");
+        this.tickBatchSize = tickBatchSize;
+    }
+    
+    public int getTickBatchSize()
+    {
+        return tickBatchSize;
+    }
+    
     public ObjectMapper getObjectMapper()
     {
         return mapper;
@@ -80,6 +264,22 @@ public class InternalContext
     
     public void close()
     {
+        synchronized (this)
+        {
+            closed = true;
+            if (replyDispatcher != null)
+            {
+                replyDispatcher.close();
+            }
+            for (ChannelPoller poller : pollers.values())
+            {
+                poller.close();
+            }
+            if (pipeline != null)
+            {
+                pipeline.close();
+            }
+        }
         this.service.shutdown();
         this.connectionPool.close();
     }
@@ -87,7 +287,95 @@ public class InternalContext
     public RedisChannel getChannel(String name)
     {
         RedisChannel channel = new RedisChannel(this, name);
-        return Objects.firstNonNull(channels.putIfAbsent(channel.getInternalName(), channel), channel);
+        RedisChannel existing = channels.putIfAbsent(channel.getInternalName(), channel);
+        if (existing == null)
+        {
+            tickScheduler.schedule(channel);
+        }
+        return Objects.firstNonNull(existing, channel);
+    }
+    
+    /**
+     * Returns a channel that is not registered for ticking, so short-lived channels such as conversation replies don't 
+     * accumulate in this context. Its redis keys expire ttlMillis after the last message sent to it.
+     */
+    public RedisChannel getTemporaryChannel(String name, long ttlMillis)
+    {
+        Preconditions.checkArgument(ttlMillis > 0, "Temporary channel TTL must be positive");
+        return new RedisChannel(this, name, ttlMillis);
+    }
+    
+    /**
+     * Waits for messages on channel through the one poller shared by every thread of this context receiving from it
+     * 
+     * @return the leased messages, or an empty list if none arrived within timeoutSec
+     */
+    List<ByteMessage> awaitMessages(RedisChannel channel, int max, int timeoutSec, long visibilityTimeout) throws IOException
+    {
+        List<ByteMessage> messages = null;
+        while (messages == null)
+        {
+            messages = _poller(channel).await(max, timeoutSec, visibilityTimeout);
+        }
+        return messages;
+    }
+    
+    private synchronized ChannelPoller _poller(RedisChannel channel) throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Context is closed");
+        }
+        ChannelPoller poller = pollers.get(channel.getInternalName());
+        if (poller == null || poller.isStopped())
+        {
+            poller = new ChannelPoller(this, channel);
+            pollers.put(channel.getInternalName(), poller);
+        }
+        return poller;
+    }
+    
+    /**
+     * Called by a poller that stopped because nobody was waiting on its channel
+     */
+    void pollerStopped(RedisChannel channel, ChannelPoller poller)
+    {
+        pollers.remove(channel.getInternalName(), poller);
+    }
+    
+    TickScheduler getTickScheduler()
+    {
+        return tickScheduler;
+    }
+    
+    /**
+     * Called when a message on channel is leased until releaseAt, so the channel is ticked in time to redeliver it
+     */
+    void leaseGranted(RedisChannel channel, long releaseAt)
+    {
+        channelUsed(channel);
+        tickScheduler.dueBy(channel, releaseAt);
+    }
+    
+    /**
+     * Called when channel is sent to or leased from, registering it again for ticking if it had been retired
+     */
+    void channelUsed(RedisChannel channel)
+    {
+        if (!channel.isTemporary() && !channels.containsKey(channel.getInternalName()) && channels.putIfAbsent(channel.getInternalName(), channel) == null)
+        {
+            tickScheduler.schedule(channel);
+        }
+    }
+    
+    /**
+     * Called when a tick found channel empty and dropped it from the channel registry, so this context stops 
+     * ticking it until it is used or discovered again
+     */
+    void channelRetired(RedisChannel channel)
+    {
+        channels.remove(channel.getInternalName());
+        tickScheduler.unschedule(channel);
     }
     
     public Set<String> getRegisteredChannels()
@@ -19,7 +19,7 @@ public class InternalRedisSerializer implements RedisSerializer
     @Override
     public boolean canSerialize(Object obj)
     {
-        return obj == null || obj instanceof ByteMessage || mapper.canSerialize(obj.getClass());
+        return obj == null || obj instanceof ByteMessage || obj instanceof byte[] || mapper.canSerialize(obj.getClass());
     }
 
     @Override
@@ -29,6 +29,10 @@ public class InternalRedisSerializer implements RedisSerializer
         {
             return ((ByteMessage) obj).getBytes();
         }
+        else if (obj instanceof byte[])
+        {
+            return (byte[]) obj;
+        }
         else
         {
             return mapper.writeValueAsBytes(obj);
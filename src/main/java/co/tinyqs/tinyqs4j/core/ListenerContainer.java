@@ -0,0 +1,336 @@
+package co.tinyqs.tinyqs4j.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import co.tinyqs.tinyqs4j.api.ByteMessage;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Consumes a channel on behalf of a handler. One thread leases messages in batches ahead of demand and hands each
+ * to an executor; a message is acknowledged once its handler returns, or released for redelivery if the handler
+ * throws. Acknowledgements and releases are sent in batches, every FLUSH_INTERVAL or as soon as FLUSH_BATCH
+ * are waiting; a batch that fails to send is kept for the next flush.
+ *
+ * At most prefetch messages are leased and not yet handled at once, so the number of handlers running follows the
+ * backlog up to that bound. Handled messages stay leased until their acknowledgement or release is flushed, so
+ * the channel may briefly hold more than prefetch leases for this container. Messages waiting on the executor are already leased: an executor that queues work
+ * should keep prefetch small enough for them to start within the channel's visibility timeout.
+ */
+public class ListenerContainer implements Runnable
+{
+    /**
+     * Processes one message. Throwing releases the message for redelivery.
+     */
+    public interface MessageHandler
+    {
+        void onMessage(ByteMessage message) throws Exception;
+    }
+
+    public static final int DEFAULT_PREFETCH = 64;
+    private static final int POLL_TIMEOUT_SEC = 1;
+    private static final long IDLE_WAIT = 100;
+    private static final long ERROR_DELAY = TimeUnit.SECONDS.toMillis(1);
+    private static final long CLOSE_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    private static final long FLUSH_INTERVAL = 100;
+    private static final int FLUSH_BATCH = 100;
+    private static final Logger LOG = Logger.getLogger(ListenerContainer.class.getName());
+
+    private final RedisChannel channel;
+    private final MessageHandler handler;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final int prefetch;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<ByteMessage> acknowledged = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<ByteMessage> failed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger unflushed = new AtomicInteger();
+    private final ScheduledExecutorService flusher;
+    private final Runnable flushTask = new Runnable() {
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                _flush();
+            }
+            catch (Exception e)
+            {
+                // Kept for the next flush, but redelivered if their leases run out first
+                LOG.log(Level.WARNING, "Flushing acknowledgements on " + channel.getName() + " failed", e);
+            }
+        }
+    };
+    private final Thread worker;
+    private volatile boolean running;
+
+    /**
+     * Runs handlers on a pool of daemon threads owned by the container, growing with the backlog up to
+     * DEFAULT_PREFETCH threads
+     */
+    public ListenerContainer(RedisChannel channel, MessageHandler handler)
+    {
+        this(channel, handler, null, DEFAULT_PREFETCH);
+    }
+
+    /**
+     * @param executor runs the handler, for example a thread per task executor. If null the container runs
+     * handlers on a pool of its own.
+     * @param prefetch the most messages leased and not yet acknowledged at once
+     */
+    public ListenerContainer(RedisChannel channel, MessageHandler handler, Executor executor, int prefetch)
+    {
+        Preconditions.checkArgument(prefetch > 0, "Prefetch must be positive");
+        this.channel = Preconditions.checkNotNull(channel, "Channel may not be null");
+        this.handler = Preconditions.checkNotNull(handler, "Handler may not be null");
+        this.prefetch = prefetch;
+        this.permits = new Semaphore(prefetch);
+        if (executor == null)
+        {
+            this.ownedExecutor = Executors.newCachedThreadPool(new HandlerThreadFactory(channel.getName()));
+            this.executor = ownedExecutor;
+        }
+        else
+        {
+            this.ownedExecutor = null;
+            this.executor = executor;
+        }
+        this.worker = new Thread(this, "tinyqs-listener-" + channel.getName());
+        this.worker.setDaemon(true);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new HandlerThreadFactory("flush-" + channel.getName()));
+    }
+
+    public RedisChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * @return the number of messages leased and not yet handled
+     */
+    public int getInFlight()
+    {
+        return prefetch - permits.availablePermits();
+    }
+
+    public synchronized void start()
+    {
+        Preconditions.checkState(!running && !worker.isAlive(), "Container already started");
+        running = true;
+        worker.start();
+        flusher.scheduleWithFixedDelay(flushTask, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run()
+    {
+        while (running)
+        {
+            try
+            {
+                int wanted = permits.drainPermits();
+                if (wanted == 0)
+                {
+                    if (!permits.tryAcquire(IDLE_WAIT, TimeUnit.MILLISECONDS))
+                    {
+                        continue;
+                    }
+                    wanted = 1 + permits.drainPermits();
+                }
+                int dispatched = 0;
+                try
+                {
+                    for (ByteMessage message : channel.receive(wanted, POLL_TIMEOUT_SEC))
+                    {
+                        dispatched++;
+                        _dispatch(message);
+                    }
+                }
+                finally
+                {
+                    permits.release(wanted - dispatched);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (Exception e)
+            {
+                LOG.log(Level.WARNING, "Receiving from " + channel.getName() + " failed", e);
+                try
+                {
+                    Thread.sleep(ERROR_DELAY);
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    private void _dispatch(final ByteMessage message)
+    {
+        try
+        {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        handler.onMessage(message);
+                        acknowledged.add(message);
+                    }
+                    catch (Exception e)
+                    {
+                        failed.add(message);
+                    }
+                    finally
+                    {
+                        permits.release();
+                        _handled();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            failed.add(message);
+            permits.release();
+            _handled();
+        }
+    }
+
+    /**
+     * Flushes early once a full batch is waiting
+     */
+    private void _handled()
+    {
+        if (unflushed.incrementAndGet() == FLUSH_BATCH)
+        {
+            try
+            {
+                flusher.execute(flushTask);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Closing, which flushes one last time
+            }
+        }
+    }
+
+    /**
+     * Sends the acknowledgements and releases collected since the last flush. A batch that can't be sent is put
+     * back to be retried by the next flush.
+     */
+    private synchronized void _flush() throws IOException
+    {
+        unflushed.set(0);
+        List<ByteMessage> acks = _drain(acknowledged);
+        List<ByteMessage> releases = _drain(failed);
+        try
+        {
+            if (!acks.isEmpty())
+            {
+                channel.acknowledgeAll(acks);
+                acks.clear();
+            }
+            if (!releases.isEmpty())
+            {
+                channel.releaseAll(releases);
+                releases.clear();
+            }
+        }
+        finally
+        {
+            acknowledged.addAll(acks);
+            failed.addAll(releases);
+        }
+    }
+
+    private static List<ByteMessage> _drain(ConcurrentLinkedQueue<ByteMessage> queue)
+    {
+        List<ByteMessage> batch = new ArrayList<>();
+        ByteMessage message;
+        while ((message = queue.poll()) != null)
+        {
+            batch.add(message);
+        }
+        return batch;
+    }
+
+    /**
+     * Stops leasing, waits for running handlers to finish and sends their outstanding acknowledgements. Messages
+     * still waiting on the executor are redelivered once their leases run out.
+     */
+    public void close()
+    {
+        running = false;
+        flusher.shutdown();
+        try
+        {
+            worker.join(CLOSE_TIMEOUT);
+            flusher.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (permits.tryAcquire(prefetch, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS))
+            {
+                permits.release(prefetch);
+            }
+            _flush();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e)
+        {
+            // Unacknowledged messages are redelivered after their leases expire
+            LOG.log(Level.WARNING, "Final flush on " + channel.getName() + " failed", e);
+        }
+        finally
+        {
+            if (ownedExecutor != null)
+            {
+                ownedExecutor.shutdown();
+            }
+        }
+    }
+
+    private static class HandlerThreadFactory implements ThreadFactory
+    {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        HandlerThreadFactory(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "tinyqs-handler-" + name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -82,6 +82,11 @@ public class RedisByteMessage implements ByteMessage
         return timestamp;
     }
 
+    /**
+     * Header values are strings, booleans, nulls or numbers. Numbers sent as Integer, Long, Double or BigDecimal
+     * come back as the same type; headers stored as JSON by older clients decode the same way rather than as
+     * BigDecimal, except that whole numbers come back as the smallest of Integer and Long that holds them.
+     */
     @Override
     public Map<String, Object> getHeaders()
     {
@@ -6,34 +6,92 @@ import co.tinyqs.tinyqs4j.api.Message;
 import co.tinyqs.tinyqs4j.api.MessageBuilder;
 import co.tinyqs.tinyredis.RedisConnection;
 import co.tinyqs.tinyredis.RedisReply;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementation of Channel that speaks directly to a redis server
  */
-public class RedisChannel implements Channel
+public class RedisChannel implements Channel, AsyncChannel
 {
     private final InternalContext context;
     private final String name;
     private final String internalName;
-    private final long ttl = TimeUnit.SECONDS.toMillis(5); // TODO: Make configurable. Only problem is the tick script does this too
+    private final long temporaryTtl;
+    public static final long DEFAULT_VISIBILITY_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    private static final long PIPELINE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    private volatile long visibilityTimeout = DEFAULT_VISIBILITY_TIMEOUT;
+    private final AtomicLong reaped = new AtomicLong();
+    private static final long TICK_LEASE = TimeUnit.SECONDS.toMillis(5);
+    
+    private static final RedisPipeline.ReplyParser<Boolean> LOCKED_SEND_PARSER = new RedisPipeline.ReplyParser<Boolean>() {
+
+        @Override
+        public Boolean parse(RedisReply reply) throws IOException
+        {
+            if (reply.isError())
+            {
+                throw new IOException("Unexpected error from send: " + reply.getString());
+            }
+            return !reply.isNil();
+        }
+    };
+    
+    private static final RedisPipeline.ReplyParser<String> SEND_PARSER = new RedisPipeline.ReplyParser<String>() {
+
+        @Override
+        public String parse(RedisReply reply) throws IOException
+        {
+            if (reply.isError())
+            {
+                throw new IOException("Unexpected error from send: " + reply.getString());
+            }
+            return reply.isString() ? reply.getString() : null;
+        }
+    };
+    
+    private static final RedisPipeline.ReplyParser<Boolean> OUTCOME_PARSER = new RedisPipeline.ReplyParser<Boolean>() {
+
+        @Override
+        public Boolean parse(RedisReply reply) throws IOException
+        {
+            if (reply.isError())
+            {
+                throw new IOException(reply.getString());
+            }
+            return reply.isInteger() && reply.getInteger() == 1;
+        }
+    };
     
     
     protected RedisChannel(InternalContext context, String name)
     {
+        this(context, name, 0);
+    }
+    
+    /**
+     * @param temporaryTtl if positive, the channel is temporary: it is never ticked and its keys expire this many 
+     * millis after the last send
+     */
+    protected RedisChannel(InternalContext context, String name, long temporaryTtl)
+    {
+        Preconditions.checkArgument(temporaryTtl >= 0, "Temporary channel TTL may not be negative");
         this.context = context;
         this.name = name;
         this.internalName = "c:"+name;
+        this.temporaryTtl = temporaryTtl;
     }
     
     @Override
@@ -42,14 +100,52 @@ public class RedisChannel implements Channel
         return this.name;
     }
     
+    /**
+     * Sets how long a received message stays leased to its consumer before it is redelivered, 
+     * unless acknowledged, released or extended first
+     */
+    public void setVisibilityTimeout(long millis)
+    {
+        Preconditions.checkArgument(millis > 0, "Visibility timeout must be positive");
+        this.visibilityTimeout = millis;
+    }
+    
+    public long getVisibilityTimeout()
+    {
+        return visibilityTimeout;
+    }
+    
+    /**
+     * @return number of expired messages deleted by this client's ticks of the channel
+     */
+    public long getReapedCount()
+    {
+        return reaped.get();
+    }
+    
     public String getInternalName()
     {
         return this.internalName;
     }
     
+    /**
+     * @return true if this channel is never ticked and its keys expire once it falls idle. Messages leased 
+     * from a temporary channel are not redelivered and delayed messages never become active.
+     */
+    public boolean isTemporary()
+    {
+        return temporaryTtl > 0;
+    }
+    
     @Override
     public void send(ByteMessage message) throws IOException
     {
+        HeaderCodec.checkHeaders(message.getHeaders());
+        if (context.isAutoPipelining())
+        {
+            _await(sendAsync(message));
+            return;
+        }
         try
         {
             RedisConnection conn = context.getConnection();
@@ -78,133 +174,301 @@ public class RedisChannel implements Channel
         
     }
 
+    /**
+     * Sends a batch of messages, pipelining every SEND on a single connection
+     * 
+     * @param messages messages to send, in order
+     * @return the uuid assigned to each message in iteration order, or null where the message had already expired
+     * @throws IOException if any send fails. The remaining messages in the batch are still sent.
+     */
+    public List<String> sendAll(Collection<? extends ByteMessage> messages) throws IOException
+    {
+        Preconditions.checkNotNull(messages, "Messages may not be null");
+        List<String> uuids = new ArrayList<>(messages.size());
+        if (messages.isEmpty())
+        {
+            return uuids;
+        }
+        for (ByteMessage message : messages)
+        {
+            HeaderCodec.checkHeaders(message.getHeaders());
+        }
+        try
+        {
+            RedisConnection conn = context.getConnection();
+            try
+            {
+                for (ByteMessage message : messages)
+                {
+                    sendMessage(message, conn, true);
+                }
+                String error = null;
+                for (int i = 0; i < messages.size(); i++)
+                {
+                    RedisReply reply = conn.getReply();
+                    if (reply.isError())
+                    {
+                        error = error == null ? reply.getString() : error;
+                        uuids.add(null);
+                    }
+                    else
+                    {
+                        uuids.add(reply.isString() ? reply.getString() : null);
+                    }
+                }
+                context.releaseConnection(conn);
+                conn = null;
+                if (error != null)
+                {
+                    throw new IOException("Unexpected error from send: " + error);
+                }
+            }
+            finally
+            {
+                if (conn != null)
+                {
+                    context.destroyConnection(conn);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException(e);
+        }
+        return uuids;
+    }
+
+    /**
+     * Takes lockKey for lockMillis, or until the message expires, and sends message in the same script
+     * 
+     * @return false if lockKey was already held, in which case nothing was sent
+     * @throws IOException if the message has already expired
+     */
+    boolean sendLocked(String lockKey, long lockMillis, ByteMessage message) throws IOException
+    {
+        HeaderCodec.checkHeaders(message.getHeaders());
+        if (context.isAutoPipelining())
+        {
+            return _await(sendLockedAsync(lockKey, lockMillis, message));
+        }
+        boolean sent;
+        try
+        {
+            RedisConnection conn = context.getConnection();
+            try
+            {   
+                sent = LOCKED_SEND_PARSER.parse(conn.sendCommand(_putFormat(lockKey), _putArgs(message, lockMillis)));
+                context.releaseConnection(conn);
+                conn = null;
+            }
+            finally
+            {
+                if (conn != null)
+                {
+                    context.destroyConnection(conn);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException(e);
+        }
+        return sent;
+    }
+    
+    /**
+     * Non-blocking counterpart to sendLocked, multiplexed onto the context's shared pipeline
+     */
+    ListenableFuture<Boolean> sendLockedAsync(String lockKey, long lockMillis, ByteMessage message)
+    {
+        try
+        {
+            return context.getPipeline().submit(_putFormat(lockKey), _putArgs(message, lockMillis), LOCKED_SEND_PARSER);
+        }
+        catch (IOException e)
+        {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
     protected void sendMessage(ByteMessage message, RedisConnection conn, boolean append) throws IOException
     {
-        String format = "EVALSHA " + Scripts.SEND.getSHA() + " 8 " + internalName + ":counter " + internalName + ":active " + internalName + ":pending data " + internalName + 
-                ":expirations deliveries timestamps headers %s %s %b %s %s %b";
         if (append)
         {
-            conn.appendCommand(format, internalName, System.currentTimeMillis(), message.getHeaders(), message.getDelay(), 
-                                                message.getExpiration(), message);
+            conn.appendCommand(_sendFormat(), _sendArgs(message));
         }
         else
         {
-            RedisReply reply = conn.sendCommand(format, internalName, System.currentTimeMillis(), message.getHeaders(), message.getDelay(), 
-                                                message.getExpiration(), message);
+            RedisReply reply = conn.sendCommand(_sendFormat(), _sendArgs(message));
             if (reply.isError())
             {
                 throw new IOException("Unexpected error from send: " + reply.getString());
             }
         }
     }   
+    
+    private String _sendFormat()
+    {
+        return "EVALSHA " + Scripts.SEND.getSHA() + " 7 " + internalName + ":counter " + internalName + ":active " + internalName + ":pending " + internalName + ":messages " + 
+                internalName + ":expirations " + internalName + ":deliveries " + InternalContext.CHANNEL_REGISTRY + " %s %s %b %s %s %b %s";
+    }
+    
+    private Object[] _sendArgs(ByteMessage message) throws IOException
+    {
+        context.channelUsed(this);
+        return new Object[] {name, System.currentTimeMillis(), HeaderCodec.encode(message.getHeaders()), message.getDelay(), message.getExpiration(), message, temporaryTtl};
+    }
+    
+    private String _putFormat(String lockKey)
+    {
+        return "EVALSHA " + Scripts.PUT.getSHA() + " 8 " + internalName + ":counter " + internalName + ":active " + internalName + ":pending " + internalName + ":messages " + 
+                internalName + ":expirations " + internalName + ":deliveries " + InternalContext.CHANNEL_REGISTRY + " " + lockKey + " %s %s %b %s %s %b %s %s";
+    }
+    
+    private Object[] _putArgs(ByteMessage message, long lockMillis) throws IOException
+    {
+        context.channelUsed(this);
+        return new Object[] {name, System.currentTimeMillis(), HeaderCodec.encode(message.getHeaders()), message.getDelay(), message.getExpiration(), message, temporaryTtl, lockMillis};
+    }
+    
+    private String _receiveFormat()
+    {
+        return "EVALSHA " + Scripts.RECEIVE.getSHA() + " 6 " + internalName + ":active " + internalName + ":reserved " + internalName + ":pending " + 
+                internalName + ":messages " + internalName + ":expirations " + internalName + ":deliveries %s %s";
+    }
+    
+    private String _acknowledgeFormat()
+    {
+        return "EVALSHA " + Scripts.ACKNOWLEDGE.getSHA() + " 4 " + internalName + ":pending " + internalName + ":messages " + 
+                internalName + ":expirations " + internalName + ":deliveries %s";
+    }
+    
+    private String _releaseFormat()
+    {
+        return "EVALSHA " + Scripts.RELEASE.getSHA() + " 3 " + internalName + ":pending " + internalName + ":active " + 
+                internalName + ":deliveries %s";
+    }
+
+    private RedisPipeline.ReplyParser<ByteMessage> _receiveParser(final long releaseAt)
+    {
+        return new RedisPipeline.ReplyParser<ByteMessage>() {
+
+            @Override
+            public ByteMessage parse(RedisReply reply) throws IOException
+            {
+                if (reply.isError())
+                {
+                    throw new IOException("Unexpected error from receive: " + reply.getString());
+                }
+                if (reply.isNil())
+                {
+                    return null;
+                }
+                Preconditions.checkState(reply.isArray(), "Expecting array result from RECEIVE script");
+                context.leaseGranted(RedisChannel.this, releaseAt);
+                return _parseMessage(reply.getElements());
+            }
+        };
+    }
+
+    private ListenableFuture<ByteMessage> _receiveAsync(long visibilityTimeout)
+    {
+        long now = System.currentTimeMillis();
+        return context.getPipeline().submit(_receiveFormat(), new Object[] {now, now + visibilityTimeout}, _receiveParser(now + visibilityTimeout));
+    }
 
-    private ByteMessage _receive(int timeoutSec) throws IOException
+    /**
+     * Leases the next message with one RECEIVE script call. Only if the channel is empty and timeoutSec is positive 
+     * does it block, through the shared poller: a script can't block, so the wait is a BRPOPLPUSH and the popped id 
+     * is then leased by a RECEIVE_BATCH call that also serves any other waiters.
+     */
+    private ByteMessage _receive(int timeoutSec, long visibilityTimeout) throws IOException
     {
+        Preconditions.checkArgument(visibilityTimeout > 0, "Visibility timeout must be positive");
         ByteMessage result = null;
+        if (context.isAutoPipelining())
+        {
+            result = _await(_receiveAsync(visibilityTimeout));
+            return result != null || timeoutSec <= 0 ? result : _awaitFirst(timeoutSec, visibilityTimeout);
+        }
         try
         {
             RedisConnection conn = context.getConnection();
             try
             {
-                RedisReply reply;
-                if (timeoutSec > 0)
+                long now = System.currentTimeMillis();
+                long releaseAt = now + visibilityTimeout;
+                RedisReply dataReply = conn.sendCommand(_receiveFormat(), now, releaseAt);
+                if (dataReply.isError())
                 {
-                    reply = conn.sendCommand("BRPOPLPUSH %s:active %s:reserved %s", internalName, internalName, timeoutSec);
+                    throw new IOException("Unexpected error from receive: " + dataReply.getString());
                 }
-                else
+                if (!dataReply.isNil())
                 {
-                    reply = conn.sendCommand("RPOPLPUSH %s:active %s:reserved", internalName, internalName);
+                    Preconditions.checkState(dataReply.isArray(), "Expecting array result from RECEIVE script");
+                    context.leaseGranted(this, releaseAt);
+                    result = _parseMessage(dataReply.getElements());
                 }
-                if (reply.isString())
+                context.releaseConnection(conn);
+                conn = null;
+            }
+            finally
+            {
+                if (conn != null)
                 {
-                    String uuid = reply.getString();                    
-                    String format = "EVALSHA " + Scripts.RECEIVE.getSHA() + " 7 " + internalName + ":reserved " + internalName + ":pending data " + internalName + 
-                            ":expirations deliveries timestamps headers %s %s";
-                            
-                    
-                    RedisReply dataReply = conn.sendCommand(format, uuid, System.currentTimeMillis() + ttl);
-                    if (dataReply.isNil())
-                    {
-                        throw new IOException("TTL passed before data was read for " + uuid);
-                    }
-                    Preconditions.checkState(dataReply.isArray(), "Expecting array result from RECEIVE script");
-                    RedisReply[] elements = dataReply.getElements();
-                    Preconditions.checkState(elements.length % 2 == 0, "Expecting even number of elements from data reply");
-                    MessageBuilder<RedisByteMessage> builder = RedisByteMessage.builder().uuid(uuid);
-                    for (int i = 0; i < elements.length; i = i + 2)
-                    {
-                        RedisReply element = elements[i];
-                        Preconditions.checkState(element.isString(), "Expecting header reply to be a string");
-                        ObjectMapper objectMapper = context.getObjectMapper();
-                        switch (element.getString())
-                        {
-                        case "headers":
-                        {
-                            RedisReply headerReply = elements[i+1];
-                            Preconditions.checkState(headerReply.isString(), "Expected header section to be string but was ", headerReply.getType(), uuid);
-                            Map<String,Object> headers = new HashMap<String,Object>();
-                            
-                            Iterator<Entry<String, JsonNode>> iter = objectMapper.readTree(headerReply.getBytes()).fields();
-                            while (iter.hasNext())
-                            {
-                                Entry<String,JsonNode> entry = iter.next();
-                                if (entry.getValue().isNumber())
-                                {
-                                    headers.put(entry.getKey(), entry.getValue().decimalValue());
-                                }
-                                else if (entry.getValue().isNull())
-                                {
-                                    headers.put(entry.getKey(), null);
-                                }
-                                else if (entry.getValue().isBoolean())
-                                {
-                                    headers.put(entry.getKey(), entry.getValue().booleanValue());
-                                }
-                                else if (entry.getValue().isTextual())
-                                {
-                                    headers.put(entry.getKey(), entry.getValue().textValue());
-                                }
-                                else
-                                {
-                                    throw new JsonMappingException("Unable to construct valid value from entry " + entry.getValue().getNodeType());
-                                }
-                            }
-                            builder.headers(headers);
-                            break;
-                        }
-                        case "data":
-                        {
-                            RedisReply bytesReply = elements[i+1];
-                            Preconditions.checkState(bytesReply.isString(), "Expecting bulk string reply for data");
-                            builder.bytes(bytesReply.getBytes());
-                            break;
-                        }
-                        case "expiration":
-                        {
-                            RedisReply expirationReply = elements[i+1];
-                            if (!expirationReply.isNil())
-                            {
-                                Preconditions.checkState(expirationReply.isString(), "Expected string representation of double for expiration");
-                                builder.expiration(objectMapper.readTree(expirationReply.getBytes()).asLong(-1));
-                            }
-                            break;
-                        }
-                        case "deliveries":
-                        {
-                            RedisReply deliveriesReply = elements[i+1];
-                            Preconditions.checkState(deliveriesReply.isInteger(), "Expected integer for delivery count");
-                            builder.deliveryCount((int)deliveriesReply.getInteger());
-                            break;
-                        }
-                        case "timestamp":
-                            RedisReply timestampReply = elements[i+1];
-                            Preconditions.checkState(timestampReply.isString(), "Expected string representation of long for timestamp");
-                            builder.timestamp(objectMapper.readTree(timestampReply.getBytes()).asLong(-1));
-                            break;
-                        }                        
-                    }
-                    result = builder.build();
+                    context.destroyConnection(conn);
                 }
+            }
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException(e);
+        }
+        // Nothing ready, so wait on the poller shared by every receiver of this channel
+        return result != null || timeoutSec <= 0 ? result : _awaitFirst(timeoutSec, visibilityTimeout);
+    }
+    
+    private ByteMessage _awaitFirst(int timeoutSec, long visibilityTimeout) throws IOException
+    {
+        List<ByteMessage> messages = _awaitMessages(1, timeoutSec, visibilityTimeout);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+    
+    /**
+     * Waits for messages through the context's shared poller. A temporary channel is typically waited on once by a 
+     * single thread, such as a conversation waiting on its claim check, so a poller would only add a thread; it 
+     * blocks on a connection of its own instead.
+     */
+    private List<ByteMessage> _awaitMessages(int max, int timeoutSec, long visibilityTimeout) throws IOException
+    {
+        if (!isTemporary())
+        {
+            return context.awaitMessages(this, max, timeoutSec, visibilityTimeout);
+        }
+        List<ByteMessage> result;
+        try
+        {
+            RedisConnection conn = context.getConnection();
+            try
+            {
+                RedisReply reply = conn.sendCommand("BRPOPLPUSH %s:active %s:reserved %s", internalName, internalName, timeoutSec);
+                if (reply.isError())
+                {
+                    throw new IOException("Unexpected error from receive: " + reply.getString());
+                }
+                result = reply.isString() ? claim(conn, reply.getString(), max, visibilityTimeout) : Collections.<ByteMessage>emptyList();
                 context.releaseConnection(conn);
                 conn = null;
             }
@@ -227,23 +491,183 @@ public class RedisChannel implements Channel
         return result;
     }
     
+    private String _receiveBatchFormat()
+    {
+        return "EVALSHA " + Scripts.RECEIVE_BATCH.getSHA() + " 6 " + internalName + ":active " + internalName + ":reserved " + internalName + ":pending " + 
+                internalName + ":messages " + internalName + ":expirations " + internalName + ":deliveries %s %s %s";
+    }
+    
+    private List<ByteMessage> _parseBatch(RedisReply dataReply, long releaseAt) throws IOException
+    {
+        if (dataReply.isError())
+        {
+            throw new IOException("Unexpected error from receive: " + dataReply.getString());
+        }
+        Preconditions.checkState(dataReply.isArray(), "Expecting array result from RECEIVE_BATCH script");
+        if (dataReply.getElements().length > 0)
+        {
+            context.leaseGranted(this, releaseAt);
+        }
+        List<ByteMessage> result = new ArrayList<>(dataReply.getElements().length);
+        for (RedisReply element : dataReply.getElements())
+        {
+            Preconditions.checkState(element.isArray(), "Expecting array element from RECEIVE_BATCH script");
+            result.add(_parseMessage(element.getElements()));
+        }
+        return result;
+    }
+    
+    /**
+     * Leases uuid, already moved to reserved by a blocking pop on conn, and up to max - 1 more messages
+     */
+    List<ByteMessage> claim(RedisConnection conn, String uuid, int max, long visibilityTimeout) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        return _parseBatch(conn.sendCommand(_receiveBatchFormat() + " %s", now, now + visibilityTimeout, max, uuid), now + visibilityTimeout);
+    }
+    
+    private ByteMessage _parseMessage(RedisReply[] elements) throws IOException
+    {
+        Preconditions.checkState(elements.length % 2 == 0, "Expecting even number of elements from data reply");
+        MessageBuilder<RedisByteMessage> builder = RedisByteMessage.builder();
+        ObjectMapper objectMapper = context.getObjectMapper();
+        String uuid = null;
+        for (int i = 0; i < elements.length; i = i + 2)
+        {
+            RedisReply element = elements[i];
+            Preconditions.checkState(element.isString(), "Expecting header reply to be a string");
+            switch (element.getString())
+            {
+            case "uuid":
+            {
+                RedisReply uuidReply = elements[i+1];
+                Preconditions.checkState(uuidReply.isString(), "Expecting string reply for uuid");
+                uuid = uuidReply.getString();
+                builder.uuid(uuid);
+                break;
+            }
+            case "headers":
+            {
+                RedisReply headerReply = elements[i+1];
+                Preconditions.checkState(headerReply.isString(), "Expected header section to be string but was ", headerReply.getType(), uuid);
+                builder.headers(HeaderCodec.decode(headerReply.getBytes(), objectMapper));
+                break;
+            }
+            case "data":
+            {
+                RedisReply bytesReply = elements[i+1];
+                Preconditions.checkState(bytesReply.isString(), "Expecting bulk string reply for data");
+                builder.bytes(bytesReply.getBytes());
+                break;
+            }
+            case "expiration":
+            {
+                RedisReply expirationReply = elements[i+1];
+                if (!expirationReply.isNil())
+                {
+                    Preconditions.checkState(expirationReply.isString(), "Expected string representation of double for expiration");
+                    builder.expiration(objectMapper.readTree(expirationReply.getBytes()).asLong(-1));
+                }
+                break;
+            }
+            case "deliveries":
+            {
+                RedisReply deliveriesReply = elements[i+1];
+                Preconditions.checkState(deliveriesReply.isInteger(), "Expected integer for delivery count");
+                builder.deliveryCount((int)deliveriesReply.getInteger());
+                break;
+            }
+            case "timestamp":
+                RedisReply timestampReply = elements[i+1];
+                if (timestampReply.isInteger())
+                {
+                    builder.timestamp(timestampReply.getInteger());
+                }
+                else
+                {
+                    Preconditions.checkState(timestampReply.isString(), "Expected string representation of long for timestamp");
+                    builder.timestamp(objectMapper.readTree(timestampReply.getBytes()).asLong(-1));
+                }
+                break;
+            }                        
+        }
+        return builder.build();
+    }
+    
     @Override
     public ByteMessage receive() throws IOException
     {
-        return _receive(-1);
+        return _receive(-1, visibilityTimeout);
     }
 
     @Override
     public ByteMessage receive(int timeoutSec) throws IOException
     {
-        return _receive(timeoutSec);
+        return _receive(timeoutSec, visibilityTimeout);
+    }
+    
+    /**
+     * Receives with a visibility timeout for this message only, overriding the channel's
+     */
+    public ByteMessage receive(int timeoutSec, long visibilityTimeout, TimeUnit unit) throws IOException
+    {
+        return _receive(timeoutSec, unit.toMillis(visibilityTimeout));
+    }
+
+    /**
+     * Leases up to maxMessages in a single round trip. If the channel is empty and timeoutSec is positive, 
+     * waits for the first message to arrive.
+     * 
+     * @return the leased messages, or an empty list if none were available
+     */
+    public List<ByteMessage> receive(int maxMessages, int timeoutSec) throws IOException
+    {
+        return receive(maxMessages, timeoutSec, visibilityTimeout, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Batch receive with a visibility timeout for these messages only, overriding the channel's
+     */
+    public List<ByteMessage> receive(int maxMessages, int timeoutSec, long visibilityTimeout, TimeUnit unit) throws IOException
+    {
+        Preconditions.checkArgument(maxMessages > 0, "Must receive at least one message");
+        visibilityTimeout = unit.toMillis(visibilityTimeout);
+        Preconditions.checkArgument(visibilityTimeout > 0, "Visibility timeout must be positive");
+        List<ByteMessage> result;
+        try
+        {
+            RedisConnection conn = context.getConnection();
+            try
+            {
+                long now = System.currentTimeMillis();
+                result = _parseBatch(conn.sendCommand(_receiveBatchFormat(), now, now + visibilityTimeout, maxMessages), now + visibilityTimeout);
+                context.releaseConnection(conn);
+                conn = null;
+            }
+            finally
+            {
+                if (conn != null)
+                {
+                    context.destroyConnection(conn);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException(e);
+        }
+        return !result.isEmpty() || timeoutSec <= 0 ? result : _awaitMessages(maxMessages, timeoutSec, visibilityTimeout);
     }
 
     @Override
     public <T> Message<T> receive(Class<? extends T> msgClass) throws IOException
     {
         Preconditions.checkArgument(context.getSerializer().canDeserialize(msgClass), "Must be able to deserialize the message class");
-        ByteMessage byteMessage = _receive(-1);
+        ByteMessage byteMessage = _receive(-1, visibilityTimeout);
         return Message.wrap(byteMessage, context.getSerializer().deserialize(byteMessage.getBytes(), msgClass));
     }
 
@@ -251,14 +675,28 @@ public class RedisChannel implements Channel
     public <T> Message<T> receive(Class<? extends T> msgClass, int timeoutSec) throws IOException
     {
         Preconditions.checkArgument(context.getSerializer().canDeserialize(msgClass), "Must be able to deserialize the message class");
-        ByteMessage byteMessage = _receive(timeoutSec);
+        ByteMessage byteMessage = _receive(timeoutSec, visibilityTimeout);
         return Message.wrap(byteMessage, context.getSerializer().deserialize(byteMessage.getBytes(), msgClass));
     }
 
+    /**
+     * @return a Reactive Streams publisher of this channel's messages as msgClass, leasing only as many as 
+     * each subscriber requests
+     */
+    public <T> ChannelPublisher<T> publisher(Class<? extends T> msgClass)
+    {
+        return new ChannelPublisher<T>(context, this, msgClass);
+    }
+
     @Override
     public void release(ByteMessage message) throws IOException
     {
         Preconditions.checkNotNull(message, "Message may not be null");
+        if (context.isAutoPipelining())
+        {
+            _await(releaseAsync(message));
+            return;
+        }
         String uuid = message.getUUID();
         try
         {
@@ -289,7 +727,7 @@ public class RedisChannel implements Channel
 
     private void _release(String uuid, RedisConnection conn) throws IOException
     {
-        RedisReply reply = conn.sendCommand("EVALSHA %s 5 %s:reserved %s:pending %s:active deliveries %s:expirations %s", Scripts.RELEASE.getSHA(), internalName, internalName, internalName, internalName, uuid);
+        RedisReply reply = conn.sendCommand(_releaseFormat(), uuid);
         if (reply.isError())
         {
             throw new IOException(reply.getString());
@@ -300,13 +738,17 @@ public class RedisChannel implements Channel
     public void acknowledge(ByteMessage message) throws IOException
     {
         Preconditions.checkNotNull(message, "Message may not be null");
+        if (context.isAutoPipelining())
+        {
+            _await(acknowledgeAsync(message));
+            return;
+        }
         try
         {
             RedisConnection conn = context.getConnection();
             try
             {
-                RedisReply reply = conn.sendCommand("EVALSHA " + Scripts.ACKNOWLEDGE.getSHA() + " 8 " + internalName + ":reserved " + internalName + ":active " + internalName + ":pending data " +
-                        internalName + ":expirations deliveries timestamps headers " + message.getUUID());
+                RedisReply reply = conn.sendCommand(_acknowledgeFormat(), message.getUUID());
                 if (reply.isError())
                 {
                     throw new IOException(reply.getString());
@@ -332,25 +774,88 @@ public class RedisChannel implements Channel
         }
     }
     
-    public void tick()
+    /**
+     * Extends the lease on a received message so it is not redelivered for another millis
+     * 
+     * @return false if the message is no longer leased, e.g. because its lease already expired
+     */
+    public boolean extendLease(ByteMessage message, long millis) throws IOException
     {
+        Preconditions.checkNotNull(message, "Message may not be null");
+        return extendLeases(Collections.singletonList(message), millis).get(0);
+    }
+    
+    /**
+     * Extends the leases on a batch of received messages with a single script call
+     * 
+     * @return whether each message was still leased and has been extended, in iteration order
+     */
+    public List<Boolean> extendLeases(Collection<? extends ByteMessage> messages, long millis) throws IOException
+    {
+        Preconditions.checkArgument(millis > 0, "Lease extension must be positive");
+        long releaseAt = System.currentTimeMillis() + millis;
+        List<Boolean> extended = _evalBatch("EVALSHA " + Scripts.EXTEND.getSHA() + " 1 " + internalName + ":pending " + releaseAt, messages);
+        if (extended.contains(Boolean.TRUE))
+        {
+            context.leaseGranted(this, releaseAt);
+        }
+        return extended;
+    }
+    
+    /**
+     * Acknowledges a batch of messages with a single script call
+     * 
+     * @return whether each message was still held by the channel, in iteration order
+     */
+    public List<Boolean> acknowledgeAll(Collection<? extends ByteMessage> messages) throws IOException
+    {
+        return _evalBatch("EVALSHA " + Scripts.ACKNOWLEDGE_BATCH.getSHA() + " 4 " + internalName + ":pending " + internalName + ":messages " + 
+                internalName + ":expirations " + internalName + ":deliveries", messages);
+    }
+    
+    /**
+     * Releases a batch of messages back to the channel with a single script call
+     * 
+     * @return whether each message was leased and has been released, in iteration order
+     */
+    public List<Boolean> releaseAll(Collection<? extends ByteMessage> messages) throws IOException
+    {
+        return _evalBatch("EVALSHA " + Scripts.RELEASE_BATCH.getSHA() + " 3 " + internalName + ":pending " + internalName + ":active " + 
+                internalName + ":deliveries", messages);
+    }
+    
+    private List<Boolean> _evalBatch(String command, Collection<? extends ByteMessage> messages) throws IOException
+    {
+        Preconditions.checkNotNull(messages, "Messages may not be null");
+        List<Boolean> result = new ArrayList<>(messages.size());
+        if (messages.isEmpty())
+        {
+            return result;
+        }
+        StringBuilder format = new StringBuilder(command);
+        Object[] uuids = new Object[messages.size()];
+        int i = 0;
+        for (ByteMessage message : messages)
+        {
+            Preconditions.checkNotNull(message, "Message may not be null");
+            format.append(" %s");
+            uuids[i++] = message.getUUID();
+        }
         try
         {
             RedisConnection conn = context.getConnection();
             try
             {
-                RedisReply reply = conn.sendCommand("EVALSHA " + Scripts.TICK.getSHA() + " 3 " + internalName + ":reserved " + internalName + ":pending " + internalName + ":active %s" , System.currentTimeMillis());
+                RedisReply reply = conn.sendCommand(format.toString(), uuids);
                 if (reply.isError())
                 {
-                    throw new RuntimeException("Unexpected error on tick " + reply.getString());
+                    throw new IOException(reply.getString());
                 }
-                reply = conn.sendCommand("ZREVRANGEBYSCORE %s:expirations %s -inf", internalName, System.currentTimeMillis());
-                Preconditions.checkState(reply.isArray(), "Expected array reply from ZREVRANGEBYSCORE");
+                Preconditions.checkState(reply.isArray(), "Expecting array reply from batch script");
                 for (RedisReply element : reply.getElements())
                 {
-                    Preconditions.checkState(element.isString(), "Expected string element from ZREVRANGEBYSCORE");
-                    String uuid = element.getString();
-                    _release(uuid, conn);
+                    Preconditions.checkState(element.isInteger(), "Expecting integer outcome from batch script");
+                    result.add(element.getInteger() == 1);
                 }
                 context.releaseConnection(conn);
                 conn = null;
@@ -363,10 +868,181 @@ public class RedisChannel implements Channel
                 }
             }
         }
+        catch (IOException e)
+        {
+            throw e;
+        }
         catch (Exception e)
         {
-            throw new RuntimeException(e);
+            throw new IOException(e);
         }
+        return result;
+    }
+    
+    @Override
+    public ListenableFuture<String> sendAsync(ByteMessage message)
+    {
+        Preconditions.checkNotNull(message, "Message may not be null");
+        try
+        {
+            return context.getPipeline().submit(_sendFormat(), _sendArgs(message), SEND_PARSER);
+        }
+        catch (IOException e)
+        {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+    
+    @Override
+    public ListenableFuture<ByteMessage> receiveAsync()
+    {
+        return _receiveAsync(visibilityTimeout);
+    }
+    
+    @Override
+    public ListenableFuture<Boolean> acknowledgeAsync(ByteMessage message)
+    {
+        Preconditions.checkNotNull(message, "Message may not be null");
+        return context.getPipeline().submit(_acknowledgeFormat(), new Object[] {message.getUUID()}, OUTCOME_PARSER);
+    }
+    
+    @Override
+    public ListenableFuture<Boolean> releaseAsync(ByteMessage message)
+    {
+        Preconditions.checkNotNull(message, "Message may not be null");
+        return context.getPipeline().submit(_releaseFormat(), new Object[] {message.getUUID()}, OUTCOME_PARSER);
+    }
+    
+    /**
+     * Waits for a pipelined command, failing rather than hanging if the pipeline's connection has stalled
+     */
+    private static <T> T _await(ListenableFuture<T> future) throws IOException
+    {
+        try
+        {
+            return future.get(PIPELINE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            future.cancel(false);
+            throw new IOException("Timed out waiting for pipelined command", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+    
+    /**
+     * Converts up to max messages stored in the original layout (global data, timestamps, headers and deliveries 
+     * hashes) to the per-channel packed layout. Call repeatedly until it returns 0, and run it to completion before 
+     * starting consumers after an upgrade. A consumer that meets an unconverted message converts it in place under 
+     * its old id when leasing it, so nothing is lost if one starts early, but old ids are only renamed here.
+     * 
+     * @return the number of entries still to visit
+     */
+    public long migrate(int max) throws IOException
+    {
+        Preconditions.checkArgument(max > 0, "Must migrate at least one message per call");
+        long remaining;
+        try
+        {
+            RedisConnection conn = context.getConnection();
+            try
+            {
+                RedisReply reply = conn.sendCommand("EVALSHA " + Scripts.MIGRATE.getSHA() + " 11 " + internalName + ":active " + internalName + ":reserved " + internalName + ":pending " + 
+                        internalName + ":messages " + internalName + ":expirations " + internalName + ":deliveries " + internalName + ":migration data timestamps headers deliveries %s %s", internalName, max);
+                if (reply.isError())
+                {
+                    throw new IOException("Unexpected error from migrate: " + reply.getString());
+                }
+                Preconditions.checkState(reply.isInteger(), "Expecting integer reply from MIGRATE script");
+                remaining = reply.getInteger();
+                context.releaseConnection(conn);
+                conn = null;
+            }
+            finally
+            {
+                if (conn != null)
+                {
+                    context.destroyConnection(conn);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException(e);
+        }
+        return remaining;
+    }
+    
+    /**
+     * Moves due messages from pending back to active and releases expired ones, if this client holds the 
+     * channel's tick lease or can take it. Handles at most the context's tick batch size of each. A channel found 
+     * with no messages left is dropped from the channel registry and from this context until it is used again.
+     */
+    public TickResult tick() throws IOException
+    {
+        return tick(context.getTickBatchSize());
+    }
+    
+    public TickResult tick(int max) throws IOException
+    {
+        Preconditions.checkArgument(max > 0, "Must tick at least one message");
+        TickResult result;
+        try
+        {
+            RedisConnection conn = context.getConnection();
+            try
+            {
+                RedisReply reply = conn.sendCommand("EVALSHA " + Scripts.TICK.getSHA() + " 8 " + internalName + ":reserved " + internalName + ":pending " + internalName + ":active " + 
+                        internalName + ":expirations " + internalName + ":tick " + internalName + ":messages " + internalName + ":deliveries " + InternalContext.CHANNEL_REGISTRY + " %s %s %s %s %s %s", 
+                        System.currentTimeMillis(), context.getClientId(), TICK_LEASE, max, visibilityTimeout, name);
+                if (reply.isError())
+                {
+                    throw new IOException("Unexpected error on tick " + reply.getString());
+                }
+                Preconditions.checkState(reply.isArray() && reply.getElements().length == 4, "Expected status, next due time, remaining and reaped counts from TICK script");
+                long status = reply.getElements()[0].getInteger();
+                result = new TickResult(status != -1, status > 0, status == -2, reply.getElements()[1].getInteger(), reply.getElements()[2].getInteger(), reply.getElements()[3].getInteger());
+                reaped.addAndGet(result.getReaped());
+                if (result.isRetired())
+                {
+                    context.channelRetired(this);
+                }
+                context.releaseConnection(conn);
+                conn = null;
+            }
+            finally
+            {
+                if (conn != null)
+                {
+                    context.destroyConnection(conn);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException(e);
+        }
+        return result;
     }
 
 }
@@ -1,9 +1,12 @@
 package co.tinyqs.tinyqs4j.core;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import co.tinyqs.tinyqs4j.api.ByteMessage;
 import co.tinyqs.tinyqs4j.api.Conversation;
@@ -13,11 +16,19 @@ import co.tinyqs.tinyredis.RedisReply;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 public class RedisConversation implements Conversation 
 {
     public static final int DEFAULT_LOCK_TIME = 30000;
     public static final String H_CLAIM_CHECK = "tinyqs-ReplyTo";
+    
+    /**
+     * Set on requests whose response should take the fast reply path, see setFastReplies
+     */
+    public static final String H_FAST_REPLY = "tinyqs-FastReply";
     private static final int MAX_LOCK_TRIES = 3;
     private static final Supplier<String> DEFAULT_UUID_SUPPLIER = new Supplier<String>(){
 
@@ -27,9 +38,23 @@ public class RedisConversation implements Conversation
         }
     };
     
+    private static final RedisPipeline.ReplyParser<Boolean> FAST_REPLY_PARSER = new RedisPipeline.ReplyParser<Boolean>() {
+
+        @Override
+        public Boolean parse(RedisReply reply) throws IOException
+        {
+            if (reply.isError())
+            {
+                throw new IOException("Unexpected error from reply: " + reply.getString());
+            }
+            return true;
+        }
+    };
+    
     private final InternalContext context;
     private final RedisChannel wrappedChannel;
     private final Supplier<String> uuidSupplier;        
+    private volatile boolean fastReplies;
     
     protected RedisConversation(InternalContext context, RedisChannel channel, Supplier<String> uuidSupplier)
     {
@@ -43,39 +68,118 @@ public class RedisConversation implements Conversation
     {
         return wrappedChannel.getName();
     }
+    
+    private RedisChannel _replyChannel(String claimCheck)
+    {
+        return context.getTemporaryChannel(claimCheck, DEFAULT_LOCK_TIME);
+    }
 
-    @Override
-    public String put(ByteMessage message) throws IOException 
+    /**
+     * When enabled, responses to requests put through this conversation skip the channel machinery: each is pushed 
+     * as one self-contained value onto a reply list that expires on its own and is taken off it by a single pop. 
+     * There is nothing to acknowledge, and the response is lost if the requester isn't waiting for it before the 
+     * list expires. Requester and responder must be running a version that supports it.
+     */
+    public void setFastReplies(boolean fastReplies)
+    {
+        this.fastReplies = fastReplies;
+    }
+    
+    public boolean isFastReplies()
     {
-        String uuid = null;
+        return fastReplies;
+    }
+    
+    private void _putReplyHeaders(Map<String,Object> headers, String claimCheck)
+    {
+        headers.put(H_CLAIM_CHECK, claimCheck);
+        if (fastReplies)
+        {
+            headers.put(H_FAST_REPLY, true);
+        }
+    }
+    
+    private static boolean _isFastReply(ByteMessage request)
+    {
+        return Boolean.TRUE.equals(request.getHeaders().get(H_FAST_REPLY));
+    }
+    
+    private String _fastReplyFormat(String claimCheck)
+    {
+        return "EVALSHA " + Scripts.REPLY.getSHA() + " 1 r:" + claimCheck + " %s %s %b %b";
+    }
+    
+    private Object[] _fastReplyArgs(ByteMessage response) throws IOException
+    {
+        return new Object[] {DEFAULT_LOCK_TIME, System.currentTimeMillis(), HeaderCodec.encode(response.getHeaders()), response};
+    }
+    
+    private void _fastRespond(String claimCheck, ByteMessage response) throws IOException
+    {
+        HeaderCodec.checkHeaders(response.getHeaders());
         try
         {
-            RedisConnection conn = context.getConnection();           
+            RedisConnection conn = context.getConnection();
             try
             {
-                // Lock UUID
-                
-                boolean locked = false;
-                
-                for (int i = 0; i < MAX_LOCK_TRIES && !locked; i++)
-                {
-                    uuid = uuidSupplier.get();
-                    long expiration = message.getExpiration() > 0 ? message.getExpiration() - System.currentTimeMillis() : DEFAULT_LOCK_TIME;
-                    RedisReply reply = conn.sendCommand("SET lock:%s 0 PX %s NX", uuid, expiration);
-                    if (reply.isError())
+                RedisReply reply = conn.sendCommand(_fastReplyFormat(claimCheck), _fastReplyArgs(response));
+                if (reply.isError())
+                {
+                    throw new IOException("Unexpected error from reply: " + reply.getString());
+                }
+                context.releaseConnection(conn);
+                conn = null;
+            }
+            finally
+            {
+                if (conn != null)
+                {
+                    context.destroyConnection(conn);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException(e);
+        }
+    }
+    
+    /**
+     * Pops the fast reply to claimCheck, blocking for up to timeoutSec if positive
+     */
+    private ByteMessage _fastWait(String claimCheck, int timeoutSec) throws IOException
+    {
+        ByteMessage result = null;
+        try
+        {
+            RedisConnection conn = context.getConnection();
+            try
+            {
+                RedisReply reply;
+                if (timeoutSec > 0)
+                {
+                    reply = conn.sendCommand("BRPOP r:%s %s", claimCheck, timeoutSec);
+                    if (reply.isArray())
                     {
-                        throw new IOException(reply.getString());
+                        reply = reply.getElements()[1];
                     }
-                    locked = !reply.isNil();
-                }
-                Preconditions.checkState(locked, "Unable to lock reply channel");   
-                
-                // Send message on channel with replyTo header set
-                Map<String,Object> headers = new HashMap<>(message.getHeaders());
-                headers.put(H_CLAIM_CHECK, uuid);
-                message = RedisByteMessage.Builder.wrap(message).headers(headers).build();
-                wrappedChannel.send(message);
-                
+                }
+                else
+                {
+                    reply = conn.sendCommand("RPOP r:%s", claimCheck);
+                }
+                if (reply.isError())
+                {
+                    throw new IOException("Unexpected error waiting for reply: " + reply.getString());
+                }
+                if (reply.isString())
+                {
+                    result = _unpackReply(claimCheck, reply.getBytes());
+                }
                 context.releaseConnection(conn);
                 conn = null;
             }
@@ -86,18 +190,262 @@ public class RedisConversation implements Conversation
                     context.destroyConnection(conn);
                 }
             }
-            
-            
         }
         catch (IOException e)
         {
-            throw e;            
+            throw e;
         }
         catch (Exception e)
         {
             throw new IOException(e);
         }
-        return uuid;
+        return result;
+    }
+    
+    /**
+     * Decodes a record packed by common.lua: version (byte) | timestamp (double) | header length (int32) | headers | data
+     */
+    private ByteMessage _unpackReply(String claimCheck, byte[] record)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.get();
+        long timestamp = (long) buffer.getDouble();
+        byte[] headers = new byte[buffer.getInt()];
+        buffer.get(headers);
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return RedisByteMessage.builder().uuid(claimCheck).bytes(data).headers(HeaderCodec.decode(headers, context.getObjectMapper()))
+                .timestamp(timestamp).deliveryCount(1).build();
+    }
+    
+    private <T> Message<T> _typed(ByteMessage message, Class<? extends T> msgClass) throws IOException
+    {
+        Preconditions.checkArgument(context.getSerializer().canDeserialize(msgClass), "Must be able to deserialize the message class");
+        if (message == null)
+        {
+            return null;
+        }
+        return Message.wrap(message, context.getSerializer().deserialize(message.getBytes(), msgClass));
+    }
+    
+    private static String _claimCheck(ByteMessage request)
+    {
+        return (String) Preconditions.checkNotNull(request.getHeaders().get(H_CLAIM_CHECK), "Malformed request - missing reply header");
+    }
+    
+    private ByteMessage _wait(String claimCheck, int timeoutSec) throws IOException
+    {
+        if (fastReplies)
+        {
+            return _fastWait(claimCheck, timeoutSec);
+        }
+        RedisChannel responseChannel = _replyChannel(claimCheck);
+        return timeoutSec < 0 ? responseChannel.receive() : responseChannel.receive(timeoutSec);
+    }
+
+    /**
+     * Puts the request with a claim check the response is addressed to. The claim check is locked and the request 
+     * sent by one script on one connection; a fresh claim check is only tried if the lock was somehow already held.
+     */
+    @Override
+    public String put(ByteMessage message) throws IOException 
+    {
+        for (int i = 0; i < MAX_LOCK_TRIES; i++)
+        {
+            String uuid = uuidSupplier.get();
+            if (wrappedChannel.sendLocked(_lockKey(uuid), DEFAULT_LOCK_TIME, _request(message, uuid)))
+            {
+                return uuid;
+            }
+        }
+        throw new IllegalStateException("Unable to lock reply channel");
+    }
+    
+    private static String _lockKey(String claimCheck)
+    {
+        return "lock:" + claimCheck;
+    }
+    
+    private ByteMessage _request(ByteMessage message, String claimCheck)
+    {
+        Map<String,Object> headers = new HashMap<>(message.getHeaders());
+        _putReplyHeaders(headers, claimCheck);
+        return RedisByteMessage.Builder.wrap(message).headers(headers).build();
+    }
+
+    /**
+     * Non-blocking counterpart to put, multiplexed onto the context's shared pipeline
+     * 
+     * @return future of the claim check for the response
+     */
+    public ListenableFuture<String> putAsync(ByteMessage message)
+    {
+        Preconditions.checkNotNull(message, "Message may not be null");
+        SettableFuture<String> result = SettableFuture.create();
+        _putAsync(message, 0, result);
+        return result;
+    }
+    
+    private void _putAsync(final ByteMessage message, final int attempt, final SettableFuture<String> result)
+    {
+        if (attempt >= MAX_LOCK_TRIES)
+        {
+            result.setException(new IllegalStateException("Unable to lock reply channel"));
+            return;
+        }
+        final String uuid = uuidSupplier.get();
+        final ListenableFuture<Boolean> sent = wrappedChannel.sendLockedAsync(_lockKey(uuid), DEFAULT_LOCK_TIME, _request(message, uuid));
+        sent.addListener(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    if (sent.get())
+                    {
+                        result.set(uuid);
+                    }
+                    else
+                    {
+                        _putAsync(message, attempt + 1, result);
+                    }
+                }
+                catch (ExecutionException e)
+                {
+                    result.setException(e.getCause());
+                }
+                catch (InterruptedException e)
+                {
+                    result.setException(e);
+                }
+            }
+        }, RedisPipeline.DIRECT_EXECUTOR);
+    }
+
+    /**
+     * Sends a request whose reply is delivered to this context's shared reply channel rather than a channel of its 
+     * own. No lock is taken and no connection is held while waiting: one background receiver completes the futures 
+     * of all outstanding requests. Cancel the future to stop waiting.
+     * 
+     * @return future of the reply, failed with an IOException if none arrives within the reply channel's TTL
+     */
+    public ListenableFuture<ByteMessage> request(ByteMessage message)
+    {
+        return request(message, ReplyDispatcher.REPLY_TTL, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Same as request, giving up on the reply after timeout
+     * 
+     * @return future of the reply, failed with an IOException if none arrives in time
+     */
+    public ListenableFuture<ByteMessage> request(ByteMessage message, long timeout, TimeUnit unit)
+    {
+        Preconditions.checkNotNull(message, "Message may not be null");
+        Preconditions.checkArgument(timeout > 0, "Timeout must be positive");
+        ReplyDispatcher dispatcher = context.getReplyDispatcher();
+        String correlationId = uuidSupplier.get();
+        final SettableFuture<ByteMessage> reply = dispatcher.expect(correlationId, unit.toMillis(timeout));
+        Map<String,Object> headers = new HashMap<>(message.getHeaders());
+        headers.put(ReplyDispatcher.H_REPLY_CHANNEL, dispatcher.getChannelName());
+        headers.put(ReplyDispatcher.H_CORRELATION_ID, correlationId);
+        final ListenableFuture<String> sent = wrappedChannel.sendAsync(RedisByteMessage.Builder.wrap(message).headers(headers).build());
+        sent.addListener(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    sent.get();
+                }
+                catch (ExecutionException e)
+                {
+                    reply.setException(e.getCause());
+                }
+                catch (InterruptedException e)
+                {
+                    reply.setException(e);
+                }
+            }
+        }, RedisPipeline.DIRECT_EXECUTOR);
+        return reply;
+    }
+    
+    /**
+     * @return the channel the reply to request goes to, either the requester's shared reply channel or the claim check's own
+     */
+    private RedisChannel _replyChannel(ByteMessage request)
+    {
+        Object replyChannel = request.getHeaders().get(ReplyDispatcher.H_REPLY_CHANNEL);
+        if (replyChannel != null)
+        {
+            return context.getTemporaryChannel((String) replyChannel, ReplyDispatcher.REPLY_TTL);
+        }
+        return _replyChannel(_claimCheck(request));
+    }
+    
+    /**
+     * @return response tagged with the correlation id of request, if it has one
+     */
+    private ByteMessage _correlate(ByteMessage request, ByteMessage response)
+    {
+        Object correlationId = request.getHeaders().get(ReplyDispatcher.H_CORRELATION_ID);
+        if (correlationId == null)
+        {
+            return response;
+        }
+        Map<String,Object> headers = new HashMap<>(response.getHeaders());
+        headers.put(ReplyDispatcher.H_CORRELATION_ID, correlationId);
+        return RedisByteMessage.Builder.wrap(response).headers(headers).build();
+    }
+
+    /**
+     * Non-blocking counterpart to respond. The request is acknowledged once the response has been sent.
+     * 
+     * @return future of whether the request was still held by the channel when acknowledged
+     */
+    public ListenableFuture<Boolean> respondAsync(final ByteMessage request, ByteMessage response)
+    {
+        final SettableFuture<Boolean> result = SettableFuture.create();
+        final ListenableFuture<?> sent;
+        if (_isFastReply(request))
+        {
+            try
+            {
+                sent = context.getPipeline().submit(_fastReplyFormat(_claimCheck(request)), _fastReplyArgs(response), FAST_REPLY_PARSER);
+            }
+            catch (IOException e)
+            {
+                return Futures.immediateFailedFuture(e);
+            }
+        }
+        else
+        {
+            sent = _replyChannel(request).sendAsync(_correlate(request, response));
+        }
+        sent.addListener(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    sent.get();
+                    RedisPipeline.forward(wrappedChannel.acknowledgeAsync(request), result);
+                }
+                catch (ExecutionException e)
+                {
+                    result.setException(e.getCause());
+                }
+                catch (InterruptedException e)
+                {
+                    result.setException(e);
+                }
+            }
+        }, RedisPipeline.DIRECT_EXECUTOR);
+        return result;
     }
 
     @Override
@@ -115,24 +463,27 @@ public class RedisConversation implements Conversation
     @Override
     public void respond(ByteMessage request, ByteMessage response) throws IOException 
     {
-        String claimCheck = (String) Preconditions.checkNotNull(request.getHeaders().get(H_CLAIM_CHECK), "Malformed request - missing reply header");
-        RedisChannel responseChannel = context.getChannel(claimCheck);
-        responseChannel.send(response);
+        if (_isFastReply(request))
+        {
+            _fastRespond(_claimCheck(request), response);
+        }
+        else
+        {
+            _replyChannel(request).send(_correlate(request, response));
+        }
         wrappedChannel.acknowledge(request);
     }
 
     @Override
     public ByteMessage wait(String claimCheck) throws IOException 
     {
-        RedisChannel responseChannel = context.getChannel(claimCheck);
-        return responseChannel.receive();
+        return _wait(claimCheck, -1);
     }
 
     @Override
     public ByteMessage wait(String claimCheck, int timeoutSec) throws IOException 
     {
-        RedisChannel responseChannel = context.getChannel(claimCheck);
-        return responseChannel.receive(timeoutSec);
+        return _wait(claimCheck, timeoutSec);
     }
 
     @Override
@@ -147,20 +498,33 @@ public class RedisConversation implements Conversation
 
     @Override
     public <T> Message<T> wait(Class<? extends T> msgClass, String claimCheck) throws IOException {
-        RedisChannel responseChannel = context.getChannel(claimCheck);
+        if (fastReplies)
+        {
+            return _typed(_fastWait(claimCheck, -1), msgClass);
+        }
+        RedisChannel responseChannel = _replyChannel(claimCheck);
         return responseChannel.receive(msgClass);
     }
 
     @Override
     public <T> Message<T> wait(Class<? extends T> msgClass, String claimCheck, int timeoutSec)
         throws IOException {
-        RedisChannel responseChannel = context.getChannel(claimCheck);
+        if (fastReplies)
+        {
+            return _typed(_fastWait(claimCheck, timeoutSec), msgClass);
+        }
+        RedisChannel responseChannel = _replyChannel(claimCheck);
         return responseChannel.receive(msgClass, timeoutSec);
     }
 
     @Override
     public void acknowledge(String claimCheck, ByteMessage response) throws IOException {
-        RedisChannel responseChannel = context.getChannel(claimCheck);
+        if (fastReplies)
+        {
+            // Fast replies were removed when they were popped
+            return;
+        }
+        RedisChannel responseChannel = _replyChannel(claimCheck);
         responseChannel.acknowledge(response);
     }
 
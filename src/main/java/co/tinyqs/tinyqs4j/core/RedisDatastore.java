@@ -26,6 +26,14 @@ public class RedisDatastore implements Datastore
         return context.getChannel(name);
     }
     
+    /**
+     * @see InternalContext#getTemporaryChannel(String, long)
+     */
+    public Channel getTemporaryChannel(String name, long ttlMillis)
+    {
+        return context.getTemporaryChannel(name, ttlMillis);
+    }
+    
     public Topic getTopic(String name)
     {
         return new RedisTopic(context, name);
@@ -0,0 +1,311 @@
+package co.tinyqs.tinyqs4j.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.tinyqs.tinyredis.RedisConnection;
+import co.tinyqs.tinyredis.RedisReply;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Multiplexes commands from many callers onto a single connection. Queued commands are written as one
+ * pipelined batch and each reply is handed back to its caller through a future, so in-flight commands
+ * don't need a thread or a pooled connection each.
+ *
+ * Only non-blocking commands may be submitted. A blocking command would stall every other caller. Replies are
+ * parsed and futures completed on a separate callback pool rather than the writing thread, so a listener that
+ * makes a synchronous call through the pipeline doesn't wait on itself.
+ */
+public class RedisPipeline implements Runnable
+{
+    /**
+     * Converts the reply to a pipelined command into its result
+     */
+    public interface ReplyParser<T>
+    {
+        public T parse(RedisReply reply) throws IOException;
+    }
+
+    static final Executor DIRECT_EXECUTOR = new Executor() {
+
+        @Override
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    private static final int MAX_BATCH = 1024;
+
+    private final InternalContext context;
+    private final LinkedBlockingQueue<PendingCommand<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private final ExecutorService callbacks = Executors.newCachedThreadPool(new ThreadFactory() {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "tinyqs-pipeline-callback-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile boolean running = true;
+    private RedisConnection conn;
+
+    RedisPipeline(InternalContext context)
+    {
+        this.context = Preconditions.checkNotNull(context);
+        this.worker = new Thread(this, "tinyqs-pipeline");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Completes target with the outcome of source once source is done
+     */
+    static <T> void forward(final ListenableFuture<? extends T> source, final SettableFuture<T> target)
+    {
+        source.addListener(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    target.set(source.get());
+                }
+                catch (ExecutionException e)
+                {
+                    target.setException(e.getCause());
+                }
+                catch (InterruptedException e)
+                {
+                    target.setException(e);
+                }
+            }
+        }, DIRECT_EXECUTOR);
+    }
+
+    public <T> ListenableFuture<T> submit(String format, Object[] args, ReplyParser<T> parser)
+    {
+        PendingCommand<T> command = new PendingCommand<>(format, args, parser);
+        // Checked and queued under the same lock close takes, so nothing is queued after the worker's final drain
+        synchronized (this)
+        {
+            if (running)
+            {
+                queue.add(command);
+                return command.future;
+            }
+        }
+        command.future.setException(new IOException("Pipeline is closed"));
+        return command.future;
+    }
+
+    @Override
+    public void run()
+    {
+        List<PendingCommand<?>> batch = new ArrayList<>(MAX_BATCH);
+        while (running || !queue.isEmpty())
+        {
+            try
+            {
+                PendingCommand<?> first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                _flush(batch);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+        _failQueued();
+        _releaseConnection();
+    }
+    
+    private void _failQueued()
+    {
+        List<PendingCommand<?>> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        _fail(remaining, new IOException("Pipeline is closed"));
+    }
+
+    private void _flush(List<PendingCommand<?>> batch)
+    {
+        List<RedisReply> replies = new ArrayList<>(batch.size());
+        try
+        {
+            if (conn == null)
+            {
+                conn = context.getConnection();
+            }
+            for (PendingCommand<?> command : batch)
+            {
+                conn.appendCommand(command.format, command.args);
+            }
+            for (int i = 0; i < batch.size(); i++)
+            {
+                replies.add(conn.getReply());
+            }
+            _complete(new ArrayList<>(batch), replies);
+        }
+        catch (Exception e)
+        {
+            // Commands whose replies arrived before the failure still get them
+            int completed = replies.size();
+            if (completed > 0)
+            {
+                _complete(new ArrayList<>(batch.subList(0, completed)), replies);
+            }
+            _fail(new ArrayList<>(batch.subList(completed, batch.size())), e);
+            _destroyConnection();
+        }
+    }
+
+    private void _complete(final List<PendingCommand<?>> commands, final List<RedisReply> replies)
+    {
+        _callback(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < commands.size(); i++)
+                {
+                    commands.get(i).complete(replies.get(i));
+                }
+            }
+        });
+    }
+
+    private void _fail(final List<PendingCommand<?>> commands, Exception e)
+    {
+        final IOException failure = e instanceof IOException ? (IOException) e : new IOException(e);
+        _callback(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                for (PendingCommand<?> command : commands)
+                {
+                    command.future.setException(failure);
+                }
+            }
+        });
+    }
+
+    private void _callback(Runnable callback)
+    {
+        try
+        {
+            callbacks.execute(callback);
+        }
+        catch (RejectedExecutionException e)
+        {
+            callback.run();
+        }
+    }
+
+    private void _releaseConnection()
+    {
+        if (conn != null)
+        {
+            try
+            {
+                context.releaseConnection(conn);
+            }
+            catch (Exception e)
+            {
+                // Pool is shutting down
+            }
+            conn = null;
+        }
+    }
+
+    private void _destroyConnection()
+    {
+        if (conn != null)
+        {
+            try
+            {
+                context.destroyConnection(conn);
+            }
+            catch (Exception e)
+            {
+                // Connection is already broken
+            }
+            conn = null;
+        }
+    }
+
+    public void close()
+    {
+        synchronized (this)
+        {
+            running = false;
+        }
+        try
+        {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        // The worker may still be stuck on a stalled connection, so don't leave anything queued behind it
+        _failQueued();
+        callbacks.shutdown();
+    }
+
+    private static class PendingCommand<T>
+    {
+        final String format;
+        final Object[] args;
+        final ReplyParser<T> parser;
+        final SettableFuture<T> future = SettableFuture.create();
+
+        PendingCommand(String format, Object[] args, ReplyParser<T> parser)
+        {
+            this.format = format;
+            this.args = args;
+            this.parser = parser;
+        }
+
+        void complete(RedisReply reply)
+        {
+            try
+            {
+                future.set(parser.parse(reply));
+            }
+            catch (Exception e)
+            {
+                future.setException(e);
+            }
+        }
+    }
+}
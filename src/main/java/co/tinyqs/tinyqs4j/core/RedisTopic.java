@@ -1,8 +1,18 @@
 package co.tinyqs.tinyqs4j.core;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import co.tinyqs.tinyqs4j.api.ByteMessage;
 import co.tinyqs.tinyqs4j.api.Topic;
@@ -14,6 +24,27 @@ public class RedisTopic implements Topic
     private final InternalContext context;
     private final String name;
     private final String internalName;
+    private volatile boolean fanoutByReference;
+    
+    private final RedisPipeline.ReplyParser<Integer> publishParser = new RedisPipeline.ReplyParser<Integer>() {
+
+        @Override
+        public Integer parse(RedisReply reply) throws IOException
+        {
+            if (reply.isError())
+            {
+                throw new IOException("Error publishing to channels " + reply.getString());
+            }
+            Preconditions.checkState(reply.isArray(), "Expecting array reply from PUBLISH script");
+            for (RedisReply element : reply.getElements())
+            {
+                Preconditions.checkState(element.isString(), "Expecting channel name from PUBLISH script");
+                // Registers the channel so this client ticks it straight away
+                context.getChannel(element.getString());
+            }
+            return reply.getElements().length;
+        }
+    };
     
     protected RedisTopic(InternalContext context, String name)
     {
@@ -27,53 +58,132 @@ public class RedisTopic implements Topic
         return name;
     }
     
+    /**
+     * When enabled, each published message is stored once under the topic and subscribers receive a 
+     * reference to it. The payload is deleted once every subscriber has acknowledged or expired it, or by the 
+     * context's periodic sweep once no subscriber channel holds it any more.
+     */
+    public void setFanoutByReference(boolean fanoutByReference)
+    {
+        this.fanoutByReference = fanoutByReference;
+    }
+    
+    public boolean isFanoutByReference()
+    {
+        return fanoutByReference;
+    }
+    
     @Override
     public int publish(ByteMessage message) throws IOException
     {
-        int nChannels = 0;
+        return publishAll(Collections.singletonList(message));
+    }
+    
+    /**
+     * Publishes a batch of messages to every subscriber with a single script call, which reads the 
+     * subscribers itself so the batch is delivered to one consistent set of channels. Nothing about the 
+     * subscribers is cached on the client: reading them costs no extra round trip, and a cache could only 
+     * publish to a stale set.
+     * 
+     * @return the number of channels each message was sent to
+     */
+    public int publishAll(Collection<? extends ByteMessage> messages) throws IOException
+    {
+        Preconditions.checkNotNull(messages, "Messages may not be null");
+        if (messages.isEmpty())
+        {
+            return 0;
+        }
+        for (ByteMessage message : messages)
+        {
+            HeaderCodec.checkHeaders(Preconditions.checkNotNull(message, "Message may not be null").getHeaders());
+        }
+        int nChannels;
         try
         {
             RedisConnection conn = context.getConnection();
             try
             {
-                RedisReply reply = conn.sendCommand("SMEMBERS %s:subscribers", internalName);
-                if (reply.isError())
+                nChannels = publishParser.parse(conn.sendCommand(_publishFormat(messages.size()), _publishArgs(messages)));
+                context.releaseConnection(conn);
+                conn = null;                
+            }
+            finally
+            {
+                if (conn != null)
                 {
-                    throw new IOException("Error getting set members " + reply.getString());
+                    context.destroyConnection(conn);
                 }
-                Preconditions.checkState(reply.isArray(), "Expecting array reply from SMEMBERS");
-                if (reply.getElements().length > 0)
+            }
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException(e);
+        }
+        return nChannels;
+    }
+
+    private String _publishFormat(int nMessages)
+    {
+        StringBuilder format = new StringBuilder("EVALSHA ").append(Scripts.PUBLISH.getSHA()).append(" 8 ").append(internalName).append(":subscribers ")
+                .append(internalName).append(":counter ").append(internalName).append(":payloads ").append(internalName).append(":refs ")
+                .append(InternalContext.CHANNEL_REGISTRY).append(" ").append(internalName).append(":holders ").append(internalName).append(":published ")
+                .append(InternalContext.TOPIC_REGISTRY).append(" %s %s %s");
+        for (int i = 0; i < nMessages; i++)
+        {
+            format.append(" %b %s %s %b");
+        }
+        return format.toString();
+    }
+    
+    private Object[] _publishArgs(Collection<? extends ByteMessage> messages) throws IOException
+    {
+        Object[] args = new Object[3 + 4 * messages.size()];
+        args[0] = name;
+        args[1] = System.currentTimeMillis();
+        args[2] = fanoutByReference ? 1 : 0;
+        int i = 3;
+        for (ByteMessage message : messages)
+        {
+            Preconditions.checkNotNull(message, "Message may not be null");
+            args[i++] = HeaderCodec.encode(message.getHeaders());
+            args[i++] = message.getDelay();
+            args[i++] = message.getExpiration();
+            args[i++] = message;
+        }
+        return args;
+    }
+
+    /**
+     * Deletes payloads fanned out by reference that no subscriber channel holds any more, e.g. because the 
+     * channel's keys were deleted or expired before its messages were acknowledged, and corrects the reference 
+     * counts of the rest. Checks at most max payloads published or last checked before the given time.
+     * 
+     * @return the number of payloads deleted
+     */
+    int reapPayloads(long before, int max) throws IOException
+    {
+        Preconditions.checkArgument(max > 0, "Must check at least one payload");
+        long reaped;
+        try
+        {
+            RedisConnection conn = context.getConnection();
+            try
+            {
+                RedisReply reply = conn.sendCommand("EVALSHA " + Scripts.REAP_PAYLOADS.getSHA() + " 5 " + internalName + ":payloads " + internalName + ":refs " + 
+                        internalName + ":holders " + internalName + ":published " + InternalContext.TOPIC_REGISTRY + " %s %s %s %s", 
+                        name, before, System.currentTimeMillis(), max);
+                if (reply.isError())
                 {
-                    conn.sendCommand("MULTI");
-                    for (RedisReply element : reply.getElements())
-                    {
-                        Preconditions.checkState(element.isString(), "Expecting string element reply from SMEMBERS");
-                        RedisChannel channel = context.getChannel(element.getString());
-                        channel.sendMessage(message, conn, true);
-                        nChannels++;
-                    }
-                    conn.appendCommand("EXEC");
-                    for (int i = 0; i < nChannels; i++)
-                    {
-                        RedisReply queued = conn.getReply();
-                        Preconditions.checkState(queued.isStatus(), "Expecting simple status reply from command sent");                        
-                    }
-                    RedisReply execReply = conn.getReply();
-                    if (execReply.isError())
-                    {
-                        throw new IOException("Error executing EXEC on channel send " + execReply.getString());
-                    }
-                    Preconditions.checkState(execReply.isArray(), "Expecting array reply from EXEC");
-                    for (RedisReply element : execReply.getElements())
-                    {
-                        if (element.isError())
-                        {
-                            throw new IOException("Error sending to channel " + element.getString());
-                        }
-                    }                    
+                    throw new IOException("Unexpected error reaping payloads " + reply.getString());
                 }
+                reaped = reply.getInteger();
                 context.releaseConnection(conn);
-                conn = null;                
+                conn = null;
             }
             finally
             {
@@ -91,7 +201,66 @@ public class RedisTopic implements Topic
         {
             throw new IOException(e);
         }
-        return nChannels;
+        return (int) reaped;
+    }
+    
+    /**
+     * Publishes through the context's shared pipeline
+     * 
+     * @return future of the number of channels the message was sent to
+     */
+    public ListenableFuture<Integer> publishAsync(ByteMessage message)
+    {
+        Preconditions.checkNotNull(message, "Message may not be null");
+        List<ByteMessage> messages = Collections.singletonList(message);
+        try
+        {
+            return context.getPipeline().submit(_publishFormat(1), _publishArgs(messages), publishParser);
+        }
+        catch (IOException e)
+        {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    /**
+     * Publishes request to every subscriber and gathers their replies, which responders send with 
+     * RedisConversation.respond. Completes once every subscriber has replied, quorum replies have arrived if 
+     * quorum is positive, or the timeout passes, with whatever replies arrived by then.
+     * 
+     * @return future of the replies in the order they arrived
+     */
+    public ListenableFuture<List<ByteMessage>> scatter(ByteMessage request, int quorum, long timeout, TimeUnit unit)
+    {
+        Preconditions.checkNotNull(request, "Request may not be null");
+        Preconditions.checkArgument(timeout > 0, "Timeout must be positive");
+        ReplyDispatcher dispatcher = context.getReplyDispatcher();
+        String correlationId = UUID.randomUUID().toString();
+        final ReplyDispatcher.Gather gather = dispatcher.gather(correlationId, quorum, unit.toMillis(timeout));
+        Map<String,Object> headers = new HashMap<>(request.getHeaders());
+        headers.put(ReplyDispatcher.H_REPLY_CHANNEL, dispatcher.getChannelName());
+        headers.put(ReplyDispatcher.H_CORRELATION_ID, correlationId);
+        final ListenableFuture<Integer> published = publishAsync(RedisByteMessage.Builder.wrap(request).headers(headers).build());
+        published.addListener(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    gather.expect(published.get());
+                }
+                catch (ExecutionException e)
+                {
+                    gather.onClose(new IOException(e.getCause()));
+                }
+                catch (InterruptedException e)
+                {
+                    gather.onClose(new IOException(e));
+                }
+            }
+        }, RedisPipeline.DIRECT_EXECUTOR);
+        return gather.getFuture();
     }
 
     @Override
@@ -0,0 +1,284 @@
+package co.tinyqs.tinyqs4j.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import co.tinyqs.tinyqs4j.api.ByteMessage;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Receives the replies to every request made through this context on one temporary channel and hands each to the 
+ * listener registered for its correlation id, so outstanding requests don't hold a connection each.
+ */
+class ReplyDispatcher implements Runnable
+{
+    /**
+     * Receives the replies carrying one correlation id
+     */
+    interface ReplyListener
+    {
+        void onReply(ByteMessage reply);
+        
+        void onClose(IOException e);
+    }
+    
+    /**
+     * Header identifying which request a reply answers
+     */
+    static final String H_CORRELATION_ID = "tinyqs-CorrelationId";
+    
+    /**
+     * Header naming the channel a responder should send its reply to
+     */
+    static final String H_REPLY_CHANNEL = "tinyqs-ReplyChannel";
+    
+    static final long REPLY_TTL = TimeUnit.MINUTES.toMillis(1);
+    private static final int MAX_BATCH = 100;
+    private static final int POLL_TIMEOUT_SEC = 1;
+    private static final long ERROR_DELAY = TimeUnit.SECONDS.toMillis(1);
+    private static final Logger LOG = Logger.getLogger(ReplyDispatcher.class.getName());
+    
+    private final InternalContext context;
+    private final RedisChannel channel;
+    private final ConcurrentHashMap<String, ReplyListener> outstanding = new ConcurrentHashMap<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+    
+    ReplyDispatcher(InternalContext context)
+    {
+        this.context = context;
+        this.channel = context.getTemporaryChannel("replies:" + context.getClientId(), REPLY_TTL);
+        this.worker = new Thread(this, "tinyqs-replies");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+    
+    String getChannelName()
+    {
+        return channel.getName();
+    }
+    
+    /**
+     * @return the number of correlation ids still waiting for replies
+     */
+    int getOutstanding()
+    {
+        return outstanding.size();
+    }
+    
+    /**
+     * @return future completed with the reply carrying correlationId, or failed if none arrives within timeoutMs.
+     * Cancelling it stops waiting for the reply.
+     */
+    SettableFuture<ByteMessage> expect(final String correlationId, long timeoutMs)
+    {
+        final SettableFuture<ByteMessage> future = SettableFuture.create();
+        _register(correlationId, new ReplyListener() {
+
+            @Override
+            public void onReply(ByteMessage reply)
+            {
+                future.set(reply);
+            }
+
+            @Override
+            public void onClose(IOException e)
+            {
+                future.setException(e);
+            }
+        }, future);
+        _deadline(future, timeoutMs, new Runnable() {
+
+            @Override
+            public void run()
+            {
+                future.setException(new IOException("Timed out waiting for reply to " + correlationId));
+            }
+        });
+        return future;
+    }
+    
+    /**
+     * Collects every reply carrying correlationId until the expected number have arrived, quorum of them have 
+     * arrived if quorum is positive, or timeoutMs has passed. Whatever has arrived by then completes the future.
+     */
+    Gather gather(String correlationId, int quorum, long timeoutMs)
+    {
+        final Gather gather = new Gather(quorum);
+        _register(correlationId, gather, gather.future);
+        _deadline(gather.future, timeoutMs, new Runnable() {
+
+            @Override
+            public void run()
+            {
+                gather.complete();
+            }
+        });
+        return gather;
+    }
+    
+    /**
+     * Runs onTimeout if done hasn't completed within timeoutMs
+     */
+    private void _deadline(final SettableFuture<?> done, long timeoutMs, Runnable onTimeout)
+    {
+        try
+        {
+            final ScheduledFuture<?> deadline = context.getScheduler().schedule(onTimeout, timeoutMs, TimeUnit.MILLISECONDS);
+            done.addListener(new Runnable() {
+    
+                @Override
+                public void run()
+                {
+                    deadline.cancel(false);
+                }
+            }, RedisPipeline.DIRECT_EXECUTOR);
+        }
+        catch (RejectedExecutionException e)
+        {
+            done.setException(new IOException("Context is closed"));
+        }
+    }
+    
+    /**
+     * Registers listener until done completes
+     */
+    private void _register(final String correlationId, final ReplyListener listener, ListenableFuture<?> done)
+    {
+        Preconditions.checkState(outstanding.putIfAbsent(correlationId, listener) == null, "Duplicate correlation id %s", correlationId);
+        done.addListener(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                outstanding.remove(correlationId, listener);
+            }
+        }, RedisPipeline.DIRECT_EXECUTOR);
+        if (!running)
+        {
+            listener.onClose(new IOException("Reply dispatcher is closed"));
+        }
+    }
+    
+    @Override
+    public void run()
+    {
+        while (running)
+        {
+            try
+            {
+                List<ByteMessage> replies = channel.receive(MAX_BATCH, POLL_TIMEOUT_SEC);
+                if (replies.isEmpty())
+                {
+                    continue;
+                }
+                for (ByteMessage reply : replies)
+                {
+                    // Replies nobody is waiting for any more are dropped
+                    ReplyListener listener = outstanding.get(String.valueOf(reply.getHeaders().get(H_CORRELATION_ID)));
+                    if (listener != null)
+                    {
+                        listener.onReply(reply);
+                    }
+                }
+                channel.acknowledgeAll(replies);
+            }
+            catch (Exception e)
+            {
+                LOG.log(Level.WARNING, "Receiving replies on " + channel.getName() + " failed", e);
+                try
+                {
+                    Thread.sleep(ERROR_DELAY);
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        for (ReplyListener listener : outstanding.values())
+        {
+            listener.onClose(new IOException("Reply dispatcher is closed"));
+        }
+    }
+    
+    /**
+     * Replies gathered for a scatter-gather request
+     */
+    static class Gather implements ReplyListener
+    {
+        private final SettableFuture<List<ByteMessage>> future = SettableFuture.create();
+        private final List<ByteMessage> replies = new ArrayList<>();
+        private final int quorum;
+        private int expected = Integer.MAX_VALUE;
+        
+        Gather(int quorum)
+        {
+            this.quorum = quorum;
+        }
+        
+        ListenableFuture<List<ByteMessage>> getFuture()
+        {
+            return future;
+        }
+        
+        /**
+         * Sets how many replies can arrive at most, once the request has been sent
+         */
+        synchronized void expect(int expected)
+        {
+            this.expected = expected;
+            _checkDone();
+        }
+        
+        @Override
+        public synchronized void onReply(ByteMessage reply)
+        {
+            replies.add(reply);
+            _checkDone();
+        }
+        
+        @Override
+        public void onClose(IOException e)
+        {
+            future.setException(e);
+        }
+        
+        synchronized void complete()
+        {
+            future.set(new ArrayList<>(replies));
+        }
+        
+        private void _checkDone()
+        {
+            if (replies.size() >= expected || (quorum > 0 && replies.size() >= quorum))
+            {
+                complete();
+            }
+        }
+    }
+    
+    void close()
+    {
+        running = false;
+        try
+        {
+            worker.join(TimeUnit.SECONDS.toMillis(POLL_TIMEOUT_SEC + 5));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -17,53 +17,126 @@ import co.tinyqs.tinyredis.ScriptSHAPair;
 class Scripts
 {
     /**
-     * -- KEYS: channel:counter channel:active, channel:pending, data, channel:expirations, deliveries, timestamps, headers
-     * -- ARGS: channelName now headers delay expires data
+     * Shared helpers prepended to every script
+     */
+    private static final String COMMON = "common.lua";
+    
+    /**
+     * -- KEYS: channel:counter channel:active, channel:pending, channel:messages, channel:expirations, channel:deliveries, channels
+     * -- ARGS: channelName now headers delay expires data ttl
      */
     public static final ScriptSHAPair SEND;
     
     /**
-     * -- KEYS: channel:reserved channel:pending data headers
-     * -- ARGS: uuid now
+     * -- KEYS: channel:active channel:reserved channel:pending channel:messages channel:expirations channel:deliveries
+     * -- ARGS: now releaseAt [uuid]
      */
     public static final ScriptSHAPair RECEIVE;
     
     /**
-     * -- KEYS: channel:reserved channel:pending channel:active
+     * -- KEYS: channel:active channel:reserved channel:pending channel:messages channel:expirations channel:deliveries
+     * -- ARGS: now releaseAt max [uuid]
+     */
+    public static final ScriptSHAPair RECEIVE_BATCH;
+    
+    /**
+     * -- KEYS: channel:pending channel:active channel:deliveries
      * -- ARGS: uuid
      */
     public static final ScriptSHAPair RELEASE;
     
     /**
-     * -- KEYS: channel:reserved, channel:active, channel:pending, data, channel:expirations, deliveries, timestamps, headers
+     * -- KEYS: channel:pending channel:active channel:deliveries
+     * -- ARGS: uuid [uuid ...]
+     */
+    public static final ScriptSHAPair RELEASE_BATCH;
+    
+    /**
+     * -- KEYS: channel:pending, channel:messages, channel:expirations, channel:deliveries
      * -- ARGS: uuid
      */
     public static final ScriptSHAPair ACKNOWLEDGE;
     
     /**
-     * -- KEYS: channel:reserved channel:pending channel:active channel:expirations
-     * -- ARGS: now
+     * -- KEYS: channel:pending, channel:messages, channel:expirations, channel:deliveries
+     * -- ARGS: uuid [uuid ...]
+     */
+    public static final ScriptSHAPair ACKNOWLEDGE_BATCH;
+    
+    /**
+     * -- KEYS: channel:reserved channel:pending channel:active channel:expirations channel:tick channel:messages channel:deliveries channels
+     * -- ARGS: now owner leaseMs max visibilityMs channelName
      */
     public static final ScriptSHAPair TICK;
     
-    private static ScriptSHAPair _readScript(String filename) throws IOException
+    /**
+     * -- KEYS: channel:pending
+     * -- ARGS: releaseAt uuid [uuid ...]
+     */
+    public static final ScriptSHAPair EXTEND;
+    
+    /**
+     * -- KEYS: channel:active channel:reserved channel:pending channel:messages channel:expirations channel:deliveries channel:migration data timestamps headers deliveries
+     * -- ARGS: channelName max
+     */
+    public static final ScriptSHAPair MIGRATE;
+    
+    /**
+     * -- KEYS: topic:subscribers topic:counter topic:payloads topic:refs channels topic:holders topic:published topics
+     * -- ARGS: topicName now byReference headers delay expires data [headers delay expires data ...]
+     */
+    public static final ScriptSHAPair PUBLISH;
+    
+    /**
+     * -- KEYS: topic:payloads topic:refs topic:holders topic:published topics
+     * -- ARGS: topicName before now max
+     */
+    public static final ScriptSHAPair REAP_PAYLOADS;
+    
+    /**
+     * -- KEYS: reply
+     * -- ARGS: ttl now headers data
+     */
+    public static final ScriptSHAPair REPLY;
+    
+    /**
+     * -- KEYS: channel:counter channel:active, channel:pending, channel:messages, channel:expirations, channel:deliveries, channels, lock
+     * -- ARGS: channelName now headers delay expires data ttl lockTtl
+     */
+    public static final ScriptSHAPair PUT;
+    
+    private static String _readResource(String filename) throws IOException
     {
         try (Reader reader = new InputStreamReader(Preconditions.checkNotNull(Scripts.class.getResourceAsStream(filename)), "UTF-8"))
         {
-            String script = CharStreams.toString(reader);
-            String sha = Hashing.sha1().hashString(script, Charsets.UTF_8).toString();
-            return new ScriptSHAPair(script, sha);
+            return CharStreams.toString(reader);
         }
     }
+    
+    private static ScriptSHAPair _readScript(String filename) throws IOException
+    {
+        String script = _readResource(COMMON) + _readResource(filename);
+        String sha = Hashing.sha1().hashString(script, Charsets.UTF_8).toString();
+        return new ScriptSHAPair(script, sha);
+    }
     static
     {
         try
         {
             SEND = _readScript("send.lua");
             RECEIVE = _readScript("receive.lua");
+            RECEIVE_BATCH = _readScript("receive_batch.lua");
             RELEASE = _readScript("release.lua");    
+            RELEASE_BATCH = _readScript("release_batch.lua");
             ACKNOWLEDGE = _readScript("acknowledge.lua");
+            ACKNOWLEDGE_BATCH = _readScript("acknowledge_batch.lua");
             TICK = _readScript("tick.lua");
+            EXTEND = _readScript("extend.lua");
+            MIGRATE = _readScript("migrate.lua");
+            PUBLISH = _readScript("publish.lua");
+            REAP_PAYLOADS = _readScript("reap_payloads.lua");
+            REPLY = _readScript("reply.lua");
+            PUT = _readScript("put.lua");
         }        
         catch (IOException e)
         {
@@ -71,5 +144,5 @@ class Scripts
         }
     }
     
-    public static final List<ScriptSHAPair> ALL = ImmutableList.of(SEND,RECEIVE, RELEASE, ACKNOWLEDGE, TICK);
+    public static final List<ScriptSHAPair> ALL = ImmutableList.of(SEND,RECEIVE, RECEIVE_BATCH, RELEASE, RELEASE_BATCH, ACKNOWLEDGE, ACKNOWLEDGE_BATCH, TICK, EXTEND, MIGRATE, PUBLISH, REAP_PAYLOADS, REPLY, PUT);
 }
@@ -0,0 +1,72 @@
+package co.tinyqs.tinyqs4j.core;
+
+/**
+ * Outcome of a single RedisChannel.tick()
+ */
+public class TickResult
+{
+    private final boolean owner;
+    private final boolean worked;
+    private final boolean retired;
+    private final long nextDue;
+    private final long remaining;
+    private final long reaped;
+    
+    TickResult(boolean owner, boolean worked, boolean retired, long nextDue, long remaining, long reaped)
+    {
+        this.owner = owner;
+        this.worked = worked;
+        this.retired = retired;
+        this.nextDue = nextDue;
+        this.remaining = remaining;
+        this.reaped = reaped;
+    }
+    
+    /**
+     * @return false if another client holds the lease on this channel's tick
+     */
+    public boolean isOwner()
+    {
+        return owner;
+    }
+    
+    /**
+     * @return true if anything was due and has been handled
+     */
+    public boolean hasWorked()
+    {
+        return worked;
+    }
+    
+    /**
+     * @return true if the channel had no messages left and was dropped from the channel registry
+     */
+    public boolean isRetired()
+    {
+        return retired;
+    }
+    
+    /**
+     * @return time in millis at which the next delayed, leased or expiring message becomes due, or -1 if there are none
+     */
+    public long getNextDue()
+    {
+        return nextDue;
+    }
+    
+    /**
+     * @return number of due entries left over because this tick hit its batch limit
+     */
+    public long getRemaining()
+    {
+        return remaining;
+    }
+    
+    /**
+     * @return number of expired messages deleted by this tick
+     */
+    public long getReaped()
+    {
+        return reaped;
+    }
+}
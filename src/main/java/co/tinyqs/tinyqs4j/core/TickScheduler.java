@@ -0,0 +1,216 @@
+package co.tinyqs.tinyqs4j.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Ticks each registered channel on its own schedule over a shared pool. Channels with nothing to do back off 
+ * up to MAX_IDLE_DELAY, a channel is re-ticked as soon as its next delayed, leased or expiring message is due 
+ * or straight away if its last tick left work behind, and a failing channel only delays itself.
+ */
+class TickScheduler
+{
+    static final long BASE_DELAY = TimeUnit.SECONDS.toMillis(1);
+    static final long MAX_IDLE_DELAY = TimeUnit.SECONDS.toMillis(10);
+    static final long MIN_DELAY = 10;
+    private static final Logger LOG = Logger.getLogger(TickScheduler.class.getName());
+    
+    private final ScheduledExecutorService service;
+    private final ConcurrentHashMap<String, ChannelTick> ticks = new ConcurrentHashMap<>();
+    
+    TickScheduler(ScheduledExecutorService service)
+    {
+        this.service = Preconditions.checkNotNull(service);
+    }
+    
+    void schedule(RedisChannel channel)
+    {
+        ChannelTick tick = new ChannelTick(channel);
+        if (ticks.putIfAbsent(channel.getInternalName(), tick) == null)
+        {
+            synchronized (tick)
+            {
+                tick.scheduleIn(0);
+            }
+        }
+    }
+    
+    /**
+     * Stops ticking channel
+     */
+    void unschedule(RedisChannel channel)
+    {
+        ChannelTick tick = ticks.remove(channel.getInternalName());
+        if (tick != null)
+        {
+            tick.cancel();
+        }
+    }
+    
+    /**
+     * Makes sure channel is ticked no later than time, e.g. when a lease is granted that expires before the next tick
+     */
+    void dueBy(RedisChannel channel, long time)
+    {
+        ChannelTick tick = ticks.get(channel.getInternalName());
+        if (tick != null)
+        {
+            tick.dueBy(time);
+        }
+    }
+    
+    /**
+     * @return the delay channel backs off to if its next tick finds nothing to do, or -1 if it isn't scheduled
+     */
+    long getIdleDelay(RedisChannel channel)
+    {
+        ChannelTick tick = ticks.get(channel.getInternalName());
+        return tick == null ? -1 : tick.getIdleDelay();
+    }
+    
+    /**
+     * @return time in millis at which channel is next ticked, or -1 if it isn't scheduled
+     */
+    long getScheduledAt(RedisChannel channel)
+    {
+        ChannelTick tick = ticks.get(channel.getInternalName());
+        return tick == null ? -1 : tick.getScheduledAt();
+    }
+    
+    private class ChannelTick
+    {
+        private final RedisChannel channel;
+        private long idleDelay = BASE_DELAY;
+        private ScheduledFuture<?> future;
+        private long scheduledAt;
+        private boolean running;
+        private long hint = Long.MAX_VALUE;
+        private long generation;
+        private boolean cancelled;
+        
+        ChannelTick(RedisChannel channel)
+        {
+            this.channel = channel;
+        }
+        
+        private void _run(long scheduledGeneration)
+        {
+            synchronized (this)
+            {
+                if (scheduledGeneration != generation)
+                {
+                    // Rescheduled by dueBy after this run was already under way
+                    return;
+                }
+                running = true;
+                hint = Long.MAX_VALUE;
+            }
+            long delay;
+            try
+            {
+                TickResult result = channel.tick();
+                if (result.getRemaining() > 0)
+                {
+                    // Hit the batch limit, so keep going until caught up
+                    idleDelay = BASE_DELAY;
+                    delay = MIN_DELAY;
+                }
+                else if (result.isOwner() && result.hasWorked())
+                {
+                    idleDelay = BASE_DELAY;
+                    delay = BASE_DELAY;
+                }
+                else
+                {
+                    // Idle, or another client is ticking this channel for us
+                    delay = idleDelay;
+                    idleDelay = Math.min(idleDelay * 2, MAX_IDLE_DELAY);
+                }
+                long untilDue = result.getNextDue() - System.currentTimeMillis();
+                if (result.getNextDue() >= 0 && untilDue > 0)
+                {
+                    delay = Math.min(delay, untilDue);
+                }
+            }
+            catch (Exception e)
+            {
+                LOG.log(Level.WARNING, "Tick of channel " + channel.getName() + " failed", e);
+                delay = idleDelay;
+                idleDelay = Math.min(idleDelay * 2, MAX_IDLE_DELAY);
+            }
+            synchronized (this)
+            {
+                running = false;
+                if (hint != Long.MAX_VALUE)
+                {
+                    delay = Math.min(delay, hint - System.currentTimeMillis());
+                }
+                scheduleIn(delay);
+            }
+        }
+        
+        synchronized long getIdleDelay()
+        {
+            return idleDelay;
+        }
+        
+        synchronized long getScheduledAt()
+        {
+            return scheduledAt;
+        }
+        
+        synchronized void cancel()
+        {
+            cancelled = true;
+            if (future != null)
+            {
+                future.cancel(false);
+            }
+        }
+        
+        synchronized void dueBy(long time)
+        {
+            if (running)
+            {
+                hint = Math.min(hint, time);
+            }
+            else if (time < scheduledAt && future != null && future.cancel(false))
+            {
+                scheduleIn(time - System.currentTimeMillis());
+            }
+        }
+        
+        private void scheduleIn(long delay)
+        {
+            if (cancelled)
+            {
+                return;
+            }
+            delay = Math.max(delay, MIN_DELAY);
+            scheduledAt = System.currentTimeMillis() + delay;
+            final long scheduledGeneration = ++generation;
+            try
+            {
+                future = service.schedule(new Runnable() {
+                    
+                    @Override
+                    public void run()
+                    {
+                        _run(scheduledGeneration);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Context is closing
+            }
+        }
+    }
+}
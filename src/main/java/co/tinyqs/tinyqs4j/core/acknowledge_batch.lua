@@ -0,0 +1,23 @@
+-- KEYS: channel:pending, channel:messages, channel:expirations, channel:deliveries
+-- ARGS: uuid [uuid ...]
+
+-- Same as acknowledge.lua for every uuid given. Returns 1 or 0 per uuid, in order.
+
+local pending = KEYS[1]
+local messages = KEYS[2]
+local expirations = KEYS[3]
+local deliveries = KEYS[4]
+
+local result = {}
+
+for index, uuid in ipairs(ARGV) do
+    local removed = redis.call('ZREM', pending, uuid)
+    if removed == 0 then
+        removed = redis.call('HEXISTS', messages, uuid)
+    end
+    if removed == 1 then
+        delete_message(messages, expirations, deliveries, uuid)
+    end
+    result[index] = removed
+end
+return result
@@ -0,0 +1,179 @@
+--Message (storage format 2):
+--        id - numeric, unique per channel (channel:counter)
+--        record - HSET "channel:messages" -> id, packed as
+--                 version (byte) | timestamp (double) | header length (int32) | headers | data
+--        expiration - ZSET "channel:expirations" -> (time) / id (optional)
+--        deliveryCount - HSET "channel:deliveries" -> id (int, absent until first delivery)
+--
+-- A message fanned out from a topic by reference has a record that only points at a shared payload:
+--                 version 3 (byte) | topic name length (int32) | topic name | payload id
+-- The payload is a version 2 record in HSET "topic:payloads" -> payload id, and HSET "topic:refs" counts
+-- the channel records still pointing at it. HSET "topic:holders" -> payload id lists those records as a JSON array
+-- of channel name, id pairs and ZSET "topic:published" -> (time) / payload id orders payloads for reap_payloads.lua.
+-- Those keys are derived from the record rather than passed in.
+--
+-- Messages sent before format 2 (storage format 1) have ids of the form channel:N, never a bare number, and keep
+-- their fields in the global data, timestamps, headers and deliveries hashes. lease converts one in place, under
+-- the same id, the first time it is delivered, so consumers started before migrate has run keep the old backlog.
+--
+-- Prepended to every script by Scripts, so everything here must be local
+
+local RECORD_VERSION = 2
+local REFERENCE_VERSION = 3
+
+local function pack_record(timestamp, headers, data)
+    return struct.pack('>Bdi4', RECORD_VERSION, timestamp, #headers) .. headers .. data
+end
+
+-- Returns timestamp, headers, data
+local function unpack_record(record)
+    local version, timestamp, headerLength, offset = struct.unpack('>Bdi4', record)
+    return timestamp, string.sub(record, offset, offset + headerLength - 1), string.sub(record, offset + headerLength)
+end
+
+local function pack_reference(topic, payloadId)
+    return struct.pack('>Bi4', REFERENCE_VERSION, #topic) .. topic .. payloadId
+end
+
+-- Returns topic, payload id if record is a reference, otherwise nil
+local function unpack_reference(record)
+    if string.byte(record, 1) ~= REFERENCE_VERSION then
+        return nil
+    end
+    local version, topicLength, offset = struct.unpack('>Bi4', record)
+    return string.sub(record, offset, offset + topicLength - 1), string.sub(record, offset + topicLength)
+end
+
+-- Returns the record for id with any reference followed, or nil if the message no longer exists
+local function load_record(messages, id)
+    local record = redis.call('HGET', messages, id)
+    if record then
+        local topic, payloadId = unpack_reference(record)
+        if topic then
+            record = redis.call('HGET', topic .. ':payloads', payloadId)
+        end
+    end
+    return record
+end
+
+-- Sends a message given the KEYS and ARGV of send.lua, returning its id or 0 if it has already expired.
+-- ttl is 0 for a durable channel. A temporary channel is left out of the registry so no client ticks it,
+-- and its keys expire ttl millis after the last send.
+local function send_message(keys, args)
+    local counter = keys[1]
+    local active = keys[2]
+    local pending = keys[3]
+    local messages = keys[4]
+    local expirations = keys[5]
+    local registry = keys[7]
+
+    local channelName = args[1]
+    local now = tonumber(args[2])
+    local headersVal = args[3]
+    local delay = tonumber(args[4])
+    local expires = tonumber(args[5])
+    local data = args[6]
+    local ttl = tonumber(args[7])
+
+    if expires > 0 and expires <= now then
+      return 0
+    end
+    local id = redis.call('INCR', counter)
+    redis.call('HSET', messages, id, pack_record(now, headersVal, data))
+    if expires >= 0 then
+        redis.call('ZADD', expirations, expires, id)
+    end
+    if delay >= 0 and delay > now then
+        redis.call('ZADD', pending, delay, id)
+    else    
+        redis.call('LPUSH', active, id)
+    end
+    if ttl > 0 then
+        for index = 1, 6 do
+            redis.call('PEXPIRE', keys[index], ttl)
+        end
+    else
+        redis.call('SADD', registry, channelName)
+    end
+    return tostring(id)
+end
+
+local function is_legacy(id)
+    return string.find(id, ':', 1, true) ~= nil
+end
+
+local function delete_legacy(id)
+    redis.call('HDEL', 'data', id)
+    redis.call('HDEL', 'timestamps', id)
+    redis.call('HDEL', 'headers', id)
+    redis.call('HDEL', 'deliveries', id)
+end
+
+-- Converts a format 1 message to a record under the same id. Returns the record, or nil if it has no data.
+local function convert_legacy(messages, deliveries, id)
+    local data = redis.call('HGET', 'data', id)
+    if not data then
+        return nil
+    end
+    local timestamp = tonumber(redis.call('HGET', 'timestamps', id)) or 0
+    local headers = redis.call('HGET', 'headers', id) or '{}'
+    local record = pack_record(timestamp, headers, data)
+    redis.call('HSET', messages, id, record)
+    local count = tonumber(redis.call('HGET', 'deliveries', id))
+    if count and count > 0 then
+        redis.call('HSET', deliveries, id, count)
+    end
+    delete_legacy(id)
+    return record
+end
+
+local function delete_message(messages, expirations, deliveries, id)
+    local record = redis.call('HGET', messages, id)
+    if record then
+        local topic, payloadId = unpack_reference(record)
+        if topic and redis.call('HINCRBY', topic .. ':refs', payloadId, -1) <= 0 then
+            redis.call('HDEL', topic .. ':payloads', payloadId)
+            redis.call('HDEL', topic .. ':refs', payloadId)
+            redis.call('HDEL', topic .. ':holders', payloadId)
+            redis.call('ZREM', topic .. ':published', payloadId)
+        end
+    elseif is_legacy(id) then
+        delete_legacy(id)
+    end
+    redis.call('HDEL', messages, id)
+    redis.call('ZREM', expirations, id)
+    redis.call('HDEL', deliveries, id)
+end
+
+-- Moves id to pending until releaseAt and returns its reply, or nil if the message no longer exists.
+-- A message found to have expired by now is deleted rather than delivered.
+local function lease(pending, messages, expirations, deliveries, id, now, releaseAt)
+    local record = load_record(messages, id)
+    if not record and is_legacy(id) then
+        record = convert_legacy(messages, deliveries, id)
+    end
+    local expiration = redis.call('ZSCORE', expirations, id)
+    if record and expiration and tonumber(expiration) <= tonumber(now) then
+        delete_message(messages, expirations, deliveries, id)
+        record = nil
+    end
+    if not record then
+        redis.call('ZREM', pending, id)
+        return nil
+    end
+    redis.call('ZADD', pending, releaseAt, id)
+    -- Keys created by the lease expire along with the rest of a temporary channel
+    local ttl = redis.call('PTTL', messages)
+    if ttl > 0 then
+        redis.call('PEXPIRE', pending, ttl)
+        redis.call('PEXPIRE', deliveries, ttl)
+    end
+    local timestamp, headers, data = unpack_record(record)
+    return {'uuid', id,
+            'headers', headers,
+            'data', data,
+            'expiration', expiration,
+            'deliveries', redis.call('HINCRBY', deliveries, id, 1),
+            'timestamp', timestamp}
+end
+
@@ -0,0 +1,20 @@
+-- KEYS: channel:pending
+-- ARGS: releaseAt uuid [uuid ...]
+
+-- Pushes back the release time of messages that are still leased. Returns 1 or 0 per uuid, in order.
+
+local pending = KEYS[1]
+
+local releaseAt = ARGV[1]
+
+local result = {}
+
+for index = 2, #ARGV do
+    if redis.call('ZSCORE', pending, ARGV[index]) then
+        redis.call('ZADD', pending, releaseAt, ARGV[index])
+        result[index - 1] = 1
+    else
+        result[index - 1] = 0
+    end
+end
+return result
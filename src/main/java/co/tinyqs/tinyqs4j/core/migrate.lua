@@ -0,0 +1,109 @@
+-- Converts a channel from storage format 1 (ids of the form channel:N, fields in the global data,
+-- timestamps, headers and deliveries hashes) to storage format 2 (numeric ids and one packed record
+-- per message in channel:messages). Meant to be run with no consumers attached to the channel.
+--
+-- The first call hands reserved messages back to active, converts pending in place and records how
+-- many active entries are left to visit in channel:migration. Each call then rotates at most max
+-- entries through active, converting legacy ids in place so ordering is preserved.
+--
+-- KEYS: channel:active channel:reserved channel:pending channel:messages channel:expirations channel:deliveries channel:migration data timestamps headers deliveries
+-- ARGS: channelName max
+-- Returns the number of active entries still to visit, 0 once the channel is converted
+
+local active = KEYS[1]
+local reserved = KEYS[2]
+local pending = KEYS[3]
+local messages = KEYS[4]
+local expirations = KEYS[5]
+local deliveries = KEYS[6]
+local migration = KEYS[7]
+local legacyData = KEYS[8]
+local legacyTimestamps = KEYS[9]
+local legacyHeaders = KEYS[10]
+local legacyDeliveries = KEYS[11]
+
+local legacyPrefix = ARGV[1] .. ':'
+local max = tonumber(ARGV[2])
+
+local function is_channel_legacy(id)
+    return string.sub(id, 1, #legacyPrefix) == legacyPrefix
+end
+
+-- Returns the new id, or nil if the legacy message no longer has any data
+local function convert(id)
+    local newId = string.sub(id, #legacyPrefix + 1)
+    local data = redis.call('HGET', legacyData, id)
+    local record = redis.call('HGET', messages, id)
+    local expiration = redis.call('ZSCORE', expirations, id)
+    redis.call('ZREM', expirations, id)
+    if record then
+        -- Already converted in place by a lease, so only the id changes
+        redis.call('HDEL', messages, id)
+        redis.call('HSET', messages, newId, record)
+        local count = redis.call('HGET', deliveries, id)
+        redis.call('HDEL', deliveries, id)
+        if count then
+            redis.call('HSET', deliveries, newId, count)
+        end
+        if expiration then
+            redis.call('ZADD', expirations, expiration, newId)
+        end
+    elseif data then
+        local timestamp = tonumber(redis.call('HGET', legacyTimestamps, id)) or 0
+        local headers = redis.call('HGET', legacyHeaders, id) or '{}'
+        redis.call('HSET', messages, newId, pack_record(timestamp, headers, data))
+        local count = tonumber(redis.call('HGET', legacyDeliveries, id))
+        if count and count > 0 then
+            redis.call('HSET', deliveries, newId, count)
+        end
+        if expiration then
+            redis.call('ZADD', expirations, expiration, newId)
+        end
+    else
+        newId = nil
+    end
+    redis.call('HDEL', legacyData, id)
+    redis.call('HDEL', legacyTimestamps, id)
+    redis.call('HDEL', legacyHeaders, id)
+    redis.call('HDEL', legacyDeliveries, id)
+    return newId
+end
+
+local remaining = tonumber(redis.call('GET', migration))
+if not remaining then
+    local id = redis.call('RPOP', reserved)
+    while id do
+        redis.call('LPUSH', active, id)
+        id = redis.call('RPOP', reserved)
+    end
+    local scored = redis.call('ZRANGE', pending, 0, -1, 'WITHSCORES')
+    for i = 1, #scored, 2 do
+        if is_channel_legacy(scored[i]) then
+            redis.call('ZREM', pending, scored[i])
+            local newId = convert(scored[i])
+            if newId then
+                redis.call('ZADD', pending, scored[i + 1], newId)
+            end
+        end
+    end
+    remaining = redis.call('LLEN', active)
+end
+
+local visited = 0
+while remaining > 0 and visited < max do
+    local id = redis.call('RPOP', active)
+    if not id then
+        remaining = 0
+        break
+    end
+    if is_channel_legacy(id) then
+        id = convert(id)
+    end
+    if id then
+        redis.call('LPUSH', active, id)
+    end
+    remaining = remaining - 1
+    visited = visited + 1
+end
+redis.call('SET', migration, remaining)
+return remaining
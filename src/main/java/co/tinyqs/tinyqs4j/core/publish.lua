@@ -0,0 +1,71 @@
+-- KEYS: topic:subscribers topic:counter topic:payloads topic:refs channels topic:holders topic:published topics
+-- ARGS: topicName now byReference headers delay expires data [headers delay expires data ...]
+
+-- Sends every message given to every channel subscribed to the topic, reading the subscribers in the
+-- same call so a concurrent subscribe or unsubscribe either sees all of the batch or none of it.
+-- With byReference set to 1 each payload is stored once under the topic and the channels get records
+-- referencing it (see common.lua), otherwise every channel gets its own copy. Each payload also records the
+-- channel records holding it and when it was published, so reap_payloads.lua can find it if those records
+-- disappear without being acknowledged. Messages that have already
+-- expired are skipped. Channel keys are derived from the channel names in the same way RedisChannel names them.
+-- Returns the names of the subscribed channels
+
+local subscribers = KEYS[1]
+local counter = KEYS[2]
+local payloads = KEYS[3]
+local refs = KEYS[4]
+local registry = KEYS[5]
+local holders = KEYS[6]
+local published = KEYS[7]
+local topics = KEYS[8]
+
+local topicName = ARGV[1]
+local now = tonumber(ARGV[2])
+local byReference = ARGV[3] == '1'
+
+local channels = redis.call('SMEMBERS', subscribers)
+if #channels == 0 then
+    return channels
+end
+
+for index = 4, #ARGV, 4 do
+    local headersVal = ARGV[index]
+    local delay = tonumber(ARGV[index + 1])
+    local expires = tonumber(ARGV[index + 2])
+    local data = ARGV[index + 3]
+    if expires <= 0 or expires > now then
+        local record = pack_record(now, headersVal, data)
+        local payloadId
+        local held = {}
+        if byReference then
+            payloadId = tostring(redis.call('INCR', counter))
+            redis.call('HSET', payloads, payloadId, record)
+            redis.call('HSET', refs, payloadId, #channels)
+            record = pack_reference('t:' .. topicName, payloadId)
+        end
+        for _, name in ipairs(channels) do
+            local channel = 'c:' .. name
+            local id = redis.call('INCR', channel .. ':counter')
+            held[#held + 1] = name
+            held[#held + 1] = tostring(id)
+            redis.call('HSET', channel .. ':messages', id, record)
+            if expires >= 0 then
+                redis.call('ZADD', channel .. ':expirations', expires, id)
+            end
+            if delay >= 0 and delay > now then
+                redis.call('ZADD', channel .. ':pending', delay, id)
+            else
+                redis.call('LPUSH', channel .. ':active', id)
+            end
+        end
+        if byReference then
+            redis.call('HSET', holders, payloadId, cjson.encode(held))
+            redis.call('ZADD', published, now, payloadId)
+            redis.call('SADD', topics, topicName)
+        end
+    end
+end
+for _, name in ipairs(channels) do
+    redis.call('SADD', registry, name)
+end
+return channels
@@ -0,0 +1,22 @@
+-- KEYS: channel:counter channel:active, channel:pending, channel:messages, channel:expirations, channel:deliveries, channels, lock
+-- ARGS: channelName now headers delay expires data ttl lockTtl
+
+-- Takes the lock and sends the message in one step, so a conversation needs one round trip and one connection
+-- to put a request. Returns nil and sends nothing if the lock is already held, and fails if the message has
+-- already expired. The lock lives until the message expires, or lockTtl millis if it never does.
+
+local lock = KEYS[8]
+local now = tonumber(ARGV[2])
+local expires = tonumber(ARGV[5])
+local lockTtl = tonumber(ARGV[8])
+
+if expires > 0 then
+    if expires <= now then
+        return redis.error_reply('Request has already expired')
+    end
+    lockTtl = expires - now
+end
+if not redis.call('SET', lock, 0, 'PX', lockTtl, 'NX') then
+    return false
+end
+return send_message(KEYS, ARGV)
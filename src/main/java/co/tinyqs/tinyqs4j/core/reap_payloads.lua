@@ -0,0 +1,51 @@
+-- KEYS: topic:payloads topic:refs topic:holders topic:published topics
+-- ARGS: topicName before now max
+
+-- Deletes payloads fanned out by reference whose channel records are all gone, which happens when a subscriber's
+-- channel keys are deleted or expire before its messages are acknowledged. Checks at most max payloads published
+-- or last checked before the given time. A payload still held has its reference count set to the records found,
+-- and is checked again once another interval has passed. A topic left with no payloads leaves the topics registry.
+-- A channel record counts as a holder only if it is still the reference to this payload, since a channel whose
+-- keys were all deleted starts numbering its messages again.
+-- Returns the number of payloads deleted
+
+local payloads = KEYS[1]
+local refs = KEYS[2]
+local holders = KEYS[3]
+local published = KEYS[4]
+local topics = KEYS[5]
+
+local topicName = ARGV[1]
+local before = ARGV[2]
+local now = tonumber(ARGV[3])
+local max = tonumber(ARGV[4])
+
+local reaped = 0
+for _, payloadId in ipairs(redis.call('ZRANGEBYSCORE', published, '-inf', before, 'LIMIT', 0, max)) do
+    local reference = pack_reference('t:' .. topicName, payloadId)
+    local held = 0
+    local entries = redis.call('HGET', holders, payloadId)
+    if entries then
+        entries = cjson.decode(entries)
+        for index = 1, #entries, 2 do
+            if redis.call('HGET', 'c:' .. entries[index] .. ':messages', entries[index + 1]) == reference then
+                held = held + 1
+            end
+        end
+    end
+    if held == 0 then
+        redis.call('HDEL', payloads, payloadId)
+        redis.call('HDEL', refs, payloadId)
+        redis.call('HDEL', holders, payloadId)
+        redis.call('ZREM', published, payloadId)
+        reaped = reaped + 1
+    else
+        redis.call('HSET', refs, payloadId, held)
+        redis.call('ZADD', published, now, payloadId)
+    end
+end
+
+if redis.call('EXISTS', published) == 0 then
+    redis.call('SREM', topics, topicName)
+end
+return reaped
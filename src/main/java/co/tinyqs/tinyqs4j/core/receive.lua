@@ -1,34 +1,34 @@
---Message:
---        uuid
---        payload - HSET "data" -> uuid (first byte is version, the remainder is payload
---        expiration - ZSET "expirations:<channel>" -> (time) / uuid (optional)
---        deliveryCount - HSET "deliveries" -> uuid (int)
---        timestamp - HSET "timestamps" -> uuid
---        headers - HSET "headers" -> uuid (JSON)
---          type - json, stream
---          replyTo - channel to reply
--- send keys: channel:counter channel:active, channel:pending, data, channel:expirations, deliveries, timestamps, headers
--- KEYS: channel:reserved channel:pending data channel:expirations, deliveries, timestamps, headers
--- ARGS: uuid releaseAt
+-- KEYS: channel:active channel:reserved channel:pending channel:messages channel:expirations channel:deliveries
+-- ARGS: now releaseAt [uuid]
 
+-- Without a uuid, pop the next message from active. With a uuid, claim a message that was
+-- already moved to reserved by a blocking pop. The blocking pop pushes onto the head of reserved,
+-- so the claim only scans past entries of other consumers claiming at the same time.
+-- Ids whose record is gone were acknowledged while queued and are skipped.
 -- Move message to pending
--- Return headers and data
+-- Return uuid, headers and data
 
-local reserved = KEYS[1]
-local pending = KEYS[2]
-local dataKey = KEYS[3]
-local expirations = KEYS[4]
-local deliveries = KEYS[5]
-local timestamps = KEYS[6]
-local headersKey = KEYS[7]
+local active = KEYS[1]
+local reserved = KEYS[2]
+local pending = KEYS[3]
+local messages = KEYS[4]
+local expirations = KEYS[5]
+local deliveries = KEYS[6]
 
-local uuid = ARGV[1]
+local now = ARGV[1]
 local releaseAt = ARGV[2]
+local uuid = ARGV[3]
 
-if tonumber(redis.call('LREM', reserved, 0, uuid)) < 1 and redis.call('ZSCORE', pending, uuid) == nil then return nil end
-redis.call('ZADD', pending, releaseAt, uuid)
-return {'headers', redis.call('HGET', headersKey, uuid), 
-        'data', redis.call('HGET', dataKey, uuid), 
-        'expiration', redis.call('ZSCORE', expirations, uuid),
-        'deliveries', redis.call('HINCRBY', deliveries, uuid, 1),
-        'timestamp', redis.call('HGET', timestamps, uuid)}
\ No newline at end of file
+if uuid then
+    if tonumber(redis.call('LREM', reserved, 1, uuid)) > 0 or redis.call('ZSCORE', pending, uuid) then
+        local result = lease(pending, messages, expirations, deliveries, uuid, now, releaseAt)
+        if result then return result end
+    end
+end
+uuid = redis.call('RPOP', active)
+while uuid do
+    local result = lease(pending, messages, expirations, deliveries, uuid, now, releaseAt)
+    if result then return result end
+    uuid = redis.call('RPOP', active)
+end
+return nil
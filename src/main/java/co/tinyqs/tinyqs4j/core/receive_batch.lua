@@ -0,0 +1,38 @@
+-- KEYS: channel:active channel:reserved channel:pending channel:messages channel:expirations channel:deliveries
+-- ARGS: now releaseAt max [uuid]
+
+-- Lease up to max messages from active, moving each to pending. A uuid already moved to reserved
+-- by a blocking pop is claimed first and counts towards max. See receive.lua for the cost of the claim.
+-- Return an array of records in the same shape as receive.lua
+
+local active = KEYS[1]
+local reserved = KEYS[2]
+local pending = KEYS[3]
+local messages = KEYS[4]
+local expirations = KEYS[5]
+local deliveries = KEYS[6]
+
+local now = ARGV[1]
+local releaseAt = ARGV[2]
+local max = tonumber(ARGV[3])
+local uuid = ARGV[4]
+
+local result = {}
+
+if uuid then
+    if tonumber(redis.call('LREM', reserved, 1, uuid)) < 1 and not redis.call('ZSCORE', pending, uuid) then
+        uuid = nil
+    end
+end
+if not uuid then
+    uuid = redis.call('RPOP', active)
+end
+while uuid do
+    local message = lease(pending, messages, expirations, deliveries, uuid, now, releaseAt)
+    if message then
+        result[#result + 1] = message
+        if #result >= max then break end
+    end
+    uuid = redis.call('RPOP', active)
+end
+return result
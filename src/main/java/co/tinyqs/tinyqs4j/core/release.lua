@@ -1,23 +1,18 @@
--- KEYS: channel:reserved channel:pending channel:active deliveries channel:expirations
+-- KEYS: channel:pending channel:active channel:deliveries
 -- ARGS: uuid
 
-local reserved = KEYS[1]
-local pending = KEYS[2]
-local active = KEYS[3]
-local deliveries = KEYS[4]
-local expirations = KEYS[5]
+-- Only leased messages can be released, and every lease lives in pending. The expiration is left in place,
+-- so a released message that expires is still reaped.
+
+local pending = KEYS[1]
+local active = KEYS[2]
+local deliveries = KEYS[3]
 
 local uuid = ARGV[1]
 
-local removedIt = false
-removedIt = tonumber(redis.call('ZREM', pending, uuid)) == 1
-if not removedIt then
-  removedIt = tonumber(redis.call('LREM', reserved, 0, uuid)) > 0
-end
+local removedIt = tonumber(redis.call('ZREM', pending, uuid)) == 1
 if removedIt then
   redis.call('LPUSH', active, uuid)
   redis.call('HINCRBY', deliveries, uuid, -1)
-  redis.call('ZREM', expirations, uuid)
 end
 return removedIt
-  
\ No newline at end of file
@@ -0,0 +1,21 @@
+-- KEYS: channel:pending channel:active channel:deliveries
+-- ARGS: uuid [uuid ...]
+
+-- Same as release.lua for every uuid given. Returns 1 or 0 per uuid, in order.
+
+local pending = KEYS[1]
+local active = KEYS[2]
+local deliveries = KEYS[3]
+
+local result = {}
+
+for index, uuid in ipairs(ARGV) do
+    if tonumber(redis.call('ZREM', pending, uuid)) == 1 then
+        redis.call('LPUSH', active, uuid)
+        redis.call('HINCRBY', deliveries, uuid, -1)
+        result[index] = 1
+    else
+        result[index] = 0
+    end
+end
+return result
@@ -0,0 +1,16 @@
+-- KEYS: reply
+-- ARGS: ttl now headers data
+
+-- Pushes a response as one packed record onto a reply list that expires after ttl millis. The requester
+-- pops it in one call and nothing else is written, so there is nothing to acknowledge or clean up.
+
+local reply = KEYS[1]
+
+local ttl = ARGV[1]
+local now = tonumber(ARGV[2])
+local headersVal = ARGV[3]
+local data = ARGV[4]
+
+redis.call('LPUSH', reply, pack_record(now, headersVal, data))
+redis.call('PEXPIRE', reply, ttl)
+return 1
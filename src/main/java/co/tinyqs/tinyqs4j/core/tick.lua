@@ -1,22 +1,89 @@
--- KEYS: channel:reserved channel:pending channel:active
--- ARGS: now
+-- KEYS: channel:reserved channel:pending channel:active channel:expirations channel:tick channel:messages channel:deliveries channels
+-- ARGS: now owner leaseMs max visibilityMs channelName
+
+-- Only one client ticks a channel at a time. The lease in channel:tick is taken when there is work
+-- to do and renewed by its owner on every tick; it lapses if the owner goes away.
+-- At most max entries are moved from reserved, at most max from pending and at most max expired messages
+-- are deleted per call, so a large backlog is worked off over several calls rather than blocking redis in one.
+-- An expired message still queued in active or reserved leaves its id behind for receive to skip.
+-- A channel left with no messages at all is dropped from the channels registry; sending to it adds it back.
+-- Returns {status, nextDue, remaining, reaped}. status is -1 if another client holds the lease, -2 if the
+-- channel is empty and was dropped from the registry, 0 if there was nothing to do, otherwise 1. nextDue is the earliest score left in pending or expirations, or -1 if
+-- both are empty. remaining is the number of reserved, due pending and expired entries left for the next
+-- call. reaped is the number of expired messages deleted.
 
 local reserved = KEYS[1]
 local pending = KEYS[2]
 local active = KEYS[3]
+local expirations = KEYS[4]
+local tickLock = KEYS[5]
+local messages = KEYS[6]
+local deliveries = KEYS[7]
+local registry = KEYS[8]
 
 local now = tonumber(ARGV[1])
+local owner = ARGV[2]
+local leaseMs = ARGV[3]
+local max = tonumber(ARGV[4])
+local visibilityMs = tonumber(ARGV[5])
+local channelName = ARGV[6]
+
+local function first_score(key)
+    local first = redis.call('ZRANGE', key, 0, 0, 'WITHSCORES')
+    if #first == 0 then
+        return -1
+    end
+    return tonumber(first[2])
+end
 
--- Default to 5 sec for now
-local newTtl = now + 5000
+local function next_due()
+    local nextPending = first_score(pending)
+    local nextExpiration = first_score(expirations)
+    if nextPending < 0 or (nextExpiration >= 0 and nextExpiration < nextPending) then
+        return nextExpiration
+    end
+    return nextPending
+end
 
-local val = redis.call('RPOP', reserved)
-while val do
+local holder = redis.call('GET', tickLock)
+if holder and holder ~= owner then
+    return {-1, next_due(), 0, 0}
+end
+
+local due = next_due()
+if redis.call('LLEN', reserved) == 0 and (due < 0 or due > now) then
+    if due < 0 and redis.call('LLEN', active) == 0 and redis.call('EXISTS', messages) == 0 then
+        redis.call('SREM', registry, channelName)
+        return {-2, -1, 0, 0}
+    end
+    return {0, due, 0, 0}
+end
+redis.call('SET', tickLock, owner, 'PX', leaseMs)
+
+-- Entries stuck in reserved were popped by a consumer that never claimed them, so give it one visibility timeout
+local newTtl = now + visibilityMs
+
+local moved = 0
+while moved < max do
+    local val = redis.call('RPOP', reserved)
+    if not val then break end
     redis.call('ZADD', pending, newTtl, val);
-    val = redis.call('RPOP', reserved)
+    moved = moved + 1
+end
+
+-- Reap expired messages first so none of them are moved back to active below
+local expired = redis.call('ZRANGEBYSCORE', expirations, '-inf', now, 'LIMIT', 0, max)
+for index, id in ipairs(expired) do
+    redis.call('ZREM', pending, id)
+    delete_message(messages, expirations, deliveries, id)
+end
+
+-- Earliest due ends up at the tail of active so it is redelivered first
+local dueIds = redis.call('ZRANGEBYSCORE', pending, '-inf', now, 'LIMIT', 0, max)
+for index = #dueIds, 1, -1 do
+    redis.call('RPUSH', active, dueIds[index])
+    redis.call('ZREM', pending, dueIds[index])
 end
 
-for index, value in pairs(redis.call('ZREVRANGEBYSCORE', pending, now, '-inf')) do
-    redis.call('RPUSH', active, value)
-    redis.call('ZREM', pending, value)
-end
\ No newline at end of file
+local remaining = redis.call('LLEN', reserved) + redis.call('ZCOUNT', pending, '-inf', now) + redis.call('ZCOUNT', expirations, '-inf', now)
+return {1, next_due(), remaining, #expired}
@@ -1,13 +1,31 @@
 package co.tinyqs.tinyqs4j.core;
 
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import co.tinyqs.tinyqs4j.api.ByteMessage;
 import co.tinyqs.tinyqs4j.api.Message;
 import co.tinyqs.tinyredis.RedisConnection;
+import co.tinyqs.tinyredis.RedisReply;
 import co.tinyqs.tinyredis.pool.RedisConfiguration;
 
 public class ChannelIntegrationTest
@@ -45,6 +63,122 @@ public class ChannelIntegrationTest
         Preconditions.checkState(nullResponse == null, "Response should be null");
     }
     
+    public void testBlockingReceive() throws Exception
+    {
+        // A message already waiting is leased by the RECEIVE script alone, without blocking
+        testSimpleSend();
+        long start = System.currentTimeMillis();
+        ByteMessage ready = Preconditions.checkNotNull(channel.receive(5), "Expecting waiting message");
+        Preconditions.checkState(System.currentTimeMillis() - start < 1000, "Expecting waiting message without blocking");
+        channel.acknowledge(ready);
+        
+        // Nothing waiting times out empty
+        start = System.currentTimeMillis();
+        Preconditions.checkState(channel.receive(1) == null, "Expecting empty channel to time out");
+        Preconditions.checkState(System.currentTimeMillis() - start >= 900, "Expecting receive to block until the timeout");
+        
+        // A message sent while blocked is handed to the waiter and leased
+        Thread sender = new Thread(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(300);
+                    channel.send(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        });
+        sender.start();
+        ByteMessage arrived = channel.receive(5);
+        sender.join();
+        Preconditions.checkState(arrived != null && Arrays.equals(arrived.getBytes(), SIMPLE_BYTES), "Expecting message sent while blocked");
+        Preconditions.checkState(channel.receive() == null, "Expecting message to be leased, not left in the channel");
+        Preconditions.checkState(channel.acknowledgeAll(Arrays.asList(arrived)).get(0), "Expecting blocked receive to hold the lease");
+    }
+    
+    public void testSendAll() throws Exception
+    {
+        ByteMessage message = RedisByteMessage.builder().bytes(SIMPLE_BYTES).build();
+        ByteMessage expired = RedisByteMessage.builder().bytes(SIMPLE_BYTES).expiration(System.currentTimeMillis() - 1).build();
+        List<String> uuids = channel.sendAll(Arrays.asList(message, expired, message));
+        Preconditions.checkState(uuids.size() == 3, "Expecting a result per message");
+        Preconditions.checkState(uuids.get(0) != null && uuids.get(2) != null, "Expecting uuids for sent messages");
+        Preconditions.checkState(uuids.get(1) == null, "Expecting no uuid for expired message");
+        Preconditions.checkState(channel.receive() != null, "Expecting first message");
+        Preconditions.checkState(channel.receive() != null, "Expecting second message");
+        Preconditions.checkState(channel.receive() == null, "Expecting no third message");
+    }
+    
+    public void testBatchReceive() throws Exception
+    {
+        ByteMessage message = RedisByteMessage.builder().bytes(SIMPLE_BYTES).build();
+        channel.sendAll(Arrays.asList(message, message, message));
+        List<ByteMessage> responses = channel.receive(2, 0);
+        Preconditions.checkState(responses.size() == 2, "Expecting two messages");
+        for (ByteMessage response : responses)
+        {
+            Preconditions.checkState(Arrays.equals(response.getBytes(), SIMPLE_BYTES), "Response arrays do not match");
+            Preconditions.checkState(response.getDeliveryCount() == 1, "Expecting first delivery");
+        }
+        responses = channel.receive(2, 1);
+        Preconditions.checkState(responses.size() == 1, "Expecting remaining message");
+        responses = channel.receive(2, 0);
+        Preconditions.checkState(responses.isEmpty(), "Expecting no messages");
+    }
+    
+    public void testHeaders() throws Exception
+    {
+        Map<String,Object> headers = new HashMap<>();
+        headers.put("count", 3);
+        headers.put("name", HELLO_WORLD);
+        headers.put("flag", true);
+        headers.put(RedisConversation.H_CLAIM_CHECK, "claim");
+        channel.send(RedisByteMessage.builder().bytes(SIMPLE_BYTES).headers(headers).build());
+        ByteMessage response = Preconditions.checkNotNull(channel.receive());
+        Preconditions.checkState(headers.equals(response.getHeaders()), "Expecting headers to round trip with their types");
+    }
+    
+    public void testHeaderFormats() throws Exception
+    {
+        Map<String,Object> headers = new HashMap<>();
+        headers.put("count", 3);
+        headers.put("negative", -7);
+        headers.put("big", 5000000000L);
+        headers.put("ratio", 1.5);
+        headers.put("name", HELLO_WORLD);
+        headers.put("flag", true);
+        headers.put("missing", null);
+        Map<String,Object> binary = HeaderCodec.decode(HeaderCodec.encode(headers), context.getObjectMapper());
+        // Headers written before the binary format existed are JSON
+        Map<String,Object> json = HeaderCodec.decode(context.getObjectMapper().writeValueAsBytes(headers), context.getObjectMapper());
+        Preconditions.checkState(headers.equals(binary), "Expecting binary headers to round trip with their types, got %s", binary);
+        Preconditions.checkState(headers.equals(json), "Expecting JSON headers to decode to the same types, got %s", json);
+        
+        headers.put("huge", new BigDecimal("123456789012345678901234567890"));
+        binary = HeaderCodec.decode(HeaderCodec.encode(headers), context.getObjectMapper());
+        json = HeaderCodec.decode(context.getObjectMapper().writeValueAsBytes(headers), context.getObjectMapper());
+        Preconditions.checkState(binary.get("huge") instanceof BigDecimal && json.get("huge") instanceof BigDecimal, "Expecting numbers too big for a long as BigDecimal");
+        Preconditions.checkState(((BigDecimal) binary.get("huge")).compareTo((BigDecimal) json.get("huge")) == 0, "Expecting big numbers to round trip");
+        
+        headers.put("nested", Arrays.asList(1, 2));
+        try
+        {
+            channel.send(RedisByteMessage.builder().bytes(SIMPLE_BYTES).headers(headers).build());
+            throw new IllegalStateException("Expecting header no reader could decode to be refused");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+        Preconditions.checkState(channel.receive() == null, "Expecting refused message not to be sent");
+    }
+    
     public void testDelayedSendReceive() throws Exception
     {
         ByteMessage message = RedisByteMessage.builder().bytes(SIMPLE_BYTES).delay(System.currentTimeMillis() + 100000).build();
@@ -98,17 +232,676 @@ public class ChannelIntegrationTest
         Preconditions.checkState(response == null, "Response should be null");
     }
     
+    public void testBatchReleaseAck() throws Exception
+    {
+        ByteMessage message = RedisByteMessage.builder().bytes(SIMPLE_BYTES).build();
+        channel.sendAll(Arrays.asList(message, message));
+        List<ByteMessage> responses = channel.receive(2, 0);
+        List<Boolean> released = channel.releaseAll(responses);
+        Preconditions.checkState(released.equals(Arrays.asList(true, true)), "Expecting both messages released");
+        responses = channel.receive(2, 0);
+        Preconditions.checkState(responses.size() == 2, "Expecting released messages to be redelivered");
+        List<Boolean> acknowledged = channel.acknowledgeAll(responses);
+        Preconditions.checkState(acknowledged.equals(Arrays.asList(true, true)), "Expecting both messages acknowledged");
+        acknowledged = channel.acknowledgeAll(responses);
+        Preconditions.checkState(acknowledged.equals(Arrays.asList(false, false)), "Expecting messages to already be acknowledged");
+        Preconditions.checkState(channel.receive() == null, "Response should be null");
+    }
+    
+    public void testAcknowledgeQueued() throws Exception
+    {
+        ByteMessage message = RedisByteMessage.builder().bytes(SIMPLE_BYTES).build();
+        List<String> uuids = channel.sendAll(Arrays.asList(message, message));
+        ByteMessage first = channel.receive();
+        Preconditions.checkState(first != null && first.getUUID().equals(uuids.get(0)), "Expecting first message");
+        channel.release(first);
+        // first is back in active, so acknowledging it leaves a tombstone for receive to skip
+        Preconditions.checkState(channel.acknowledgeAll(Arrays.asList(first)).get(0), "Expecting queued message acknowledged");
+        ByteMessage second = channel.receive();
+        Preconditions.checkState(second != null && second.getUUID().equals(uuids.get(1)), "Expecting second message");
+        channel.acknowledge(second);
+        Preconditions.checkState(channel.receive() == null, "Expecting acknowledged message to be skipped");
+        Preconditions.checkState(!channel.acknowledgeAll(Arrays.asList(first)).get(0), "Expecting message to already be acknowledged");
+    }
+    
+    public void testAsync() throws Exception
+    {
+        ByteMessage message = RedisByteMessage.builder().bytes(SIMPLE_BYTES).build();
+        String uuid = channel.sendAsync(message).get();
+        Preconditions.checkState(uuid != null, "Expecting uuid from async send");
+        ByteMessage response = channel.receiveAsync().get();
+        Preconditions.checkState(response != null && uuid.equals(response.getUUID()), "Expecting sent message");
+        Preconditions.checkState(channel.acknowledgeAsync(response).get(), "Expecting message to be acknowledged");
+        Preconditions.checkState(channel.receiveAsync().get() == null, "Response should be null");
+    }
+    
+    public void testPipelineClose() throws Exception
+    {
+        RedisPipeline pipeline = new RedisPipeline(context);
+        ListenableFuture<Boolean> before = pipeline.submit("PING", new Object[0], new RedisPipeline.ReplyParser<Boolean>() {
+
+            @Override
+            public Boolean parse(RedisReply reply)
+            {
+                return !reply.isError();
+            }
+        });
+        pipeline.close();
+        Preconditions.checkState(before.isDone(), "Expecting command queued before close to complete");
+        ListenableFuture<Boolean> after = pipeline.submit("PING", new Object[0], new RedisPipeline.ReplyParser<Boolean>() {
+
+            @Override
+            public Boolean parse(RedisReply reply)
+            {
+                return !reply.isError();
+            }
+        });
+        try
+        {
+            after.get(1, TimeUnit.SECONDS);
+            throw new IllegalStateException("Expecting command after close to fail");
+        }
+        catch (ExecutionException e)
+        {
+            Preconditions.checkState(e.getCause() instanceof IOException, "Expecting IOException");
+        }
+    }
+    
+    public void testAutoPipelining() throws Exception
+    {
+        context.setAutoPipelining(true);
+        try
+        {
+            channel.send(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+            ByteMessage message = Preconditions.checkNotNull(channel.receive());
+            Preconditions.checkState(Arrays.equals(message.getBytes(), SIMPLE_BYTES), "Response arrays do not match");
+            channel.acknowledge(message);
+            Preconditions.checkState(channel.receive() == null, "Expecting acknowledged message to be gone");
+            
+            // A synchronous call from a listener must not wait on the thread that completes it
+            final ListenableFuture<String> sent = channel.sendAsync(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+            final LinkedBlockingQueue<Object> outcome = new LinkedBlockingQueue<>();
+            sent.addListener(new Runnable() {
+
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        ByteMessage received = Preconditions.checkNotNull(channel.receive());
+                        channel.acknowledge(received);
+                        outcome.add(received);
+                    }
+                    catch (Exception e)
+                    {
+                        outcome.add(e);
+                    }
+                }
+            }, RedisPipeline.DIRECT_EXECUTOR);
+            Preconditions.checkState(outcome.poll(10, TimeUnit.SECONDS) instanceof ByteMessage, "Expecting receive from a listener to complete");
+        }
+        finally
+        {
+            context.setAutoPipelining(false);
+        }
+    }
+    
+    public void testMigrate() throws Exception
+    {
+        String legacyId = channel.getInternalName() + ":1";
+        RedisConnection conn = context.getConnection();
+        try
+        {
+            conn.exceptionOnError(true);
+            conn.sendCommand("INCR %s:counter", channel.getInternalName());
+            conn.sendCommand("HSET data %s %b", legacyId, RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+            conn.sendCommand("HSET headers %s %s", legacyId, "{}");
+            conn.sendCommand("HSET timestamps %s %s", legacyId, System.currentTimeMillis());
+            conn.sendCommand("HSET deliveries %s %s", legacyId, 0);
+            conn.sendCommand("LPUSH %s:active %s", channel.getInternalName(), legacyId);
+        }
+        finally
+        {
+            context.releaseConnection(conn);
+        }
+        testSimpleSend();
+        while (channel.migrate(1) > 0);
+        ByteMessage response = channel.receive();
+        Preconditions.checkState(response != null && "1".equals(response.getUUID()), "Expecting migrated message first");
+        Preconditions.checkState(Arrays.equals(response.getBytes(), SIMPLE_BYTES), "Response arrays do not match");
+        response = channel.receive();
+        Preconditions.checkState(response != null && "2".equals(response.getUUID()), "Expecting new message second");
+        Preconditions.checkState(channel.receive() == null, "Response should be null");
+    }
+    
+    public void testLegacyReceive() throws Exception
+    {
+        String legacyId = channel.getInternalName() + ":1";
+        RedisConnection conn = context.getConnection();
+        try
+        {
+            conn.exceptionOnError(true);
+            conn.sendCommand("INCR %s:counter", channel.getInternalName());
+            conn.sendCommand("HSET data %s %b", legacyId, RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+            conn.sendCommand("HSET headers %s %s", legacyId, "{}");
+            conn.sendCommand("HSET timestamps %s %s", legacyId, System.currentTimeMillis());
+            conn.sendCommand("HSET deliveries %s %s", legacyId, 0);
+            conn.sendCommand("LPUSH %s:active %s", channel.getInternalName(), legacyId);
+        }
+        finally
+        {
+            context.releaseConnection(conn);
+        }
+        // Consumers started before migrate still get the old backlog, converted as it is leased
+        ByteMessage response = channel.receive();
+        Preconditions.checkState(response != null && legacyId.equals(response.getUUID()), "Expecting legacy message to be delivered");
+        Preconditions.checkState(Arrays.equals(response.getBytes(), SIMPLE_BYTES), "Response arrays do not match");
+        channel.release(response);
+        while (channel.migrate(1) > 0);
+        response = channel.receive();
+        Preconditions.checkState(response != null && "1".equals(response.getUUID()), "Expecting converted message to be migrated");
+        Preconditions.checkState(response.getDeliveryCount() == 1, "Expecting delivery count to carry over");
+        channel.acknowledge(response);
+        Preconditions.checkState(channel.receive() == null, "Response should be null");
+    }
+    
     public void testTick() throws Exception
     {
-        channel.tick();
-        ByteMessage message = RedisByteMessage.builder().bytes(SIMPLE_BYTES).expiration(System.currentTimeMillis() + 1000).build();
+        channel.send(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+        long leasedAt = System.currentTimeMillis();
+        ByteMessage leased = Preconditions.checkNotNull(channel.receive(0, 500, TimeUnit.MILLISECONDS));
+        Preconditions.checkState(channel.receive() == null, "Expecting leased message to stay invisible");
+        // Nothing ticks the channel by hand: the lease itself has the background scheduler tick it when it runs out
+        ByteMessage redelivered = channel.receive(3);
+        long elapsed = System.currentTimeMillis() - leasedAt;
+        Preconditions.checkState(redelivered != null && leased.getUUID().equals(redelivered.getUUID()), "Expecting expired lease to be redelivered");
+        Preconditions.checkState(redelivered.getDeliveryCount() == leased.getDeliveryCount() + 1, "Expecting redelivery to be counted");
+        Preconditions.checkState(elapsed >= 500 && elapsed < 500 + TickScheduler.BASE_DELAY, "Expecting redelivery about one visibility timeout after the lease, took %sms", elapsed);
+        channel.acknowledge(redelivered);
+        
+        ByteMessage message = RedisByteMessage.builder().bytes(SIMPLE_BYTES).expiration(System.currentTimeMillis() + 200).build();
         channel.send(message);
+        Thread.sleep(300);
         channel.tick();
-        ByteMessage response = Preconditions.checkNotNull(channel.receive());
-        channel.tick();
-        channel.release(response);
-        Thread.sleep(1000);
+        Preconditions.checkState(channel.receive() == null, "Expecting expired message to be reaped");
+    }
+    
+    public void testTickBackoff() throws Exception
+    {
+        TickScheduler scheduler = context.getTickScheduler();
+        RedisChannel idle = context.getChannel("integrationBackoffTest");
+        // A message nobody receives keeps the channel registered without giving its ticks anything to do
+        idle.send(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+        Thread.sleep(TickScheduler.BASE_DELAY + 500);
+        Preconditions.checkState(scheduler.getIdleDelay(idle) > TickScheduler.BASE_DELAY, "Expecting idle channel to back off");
+        
+        ByteMessage leased = Preconditions.checkNotNull(idle.receive(0, 200, TimeUnit.MILLISECONDS));
+        long untilTick = scheduler.getScheduledAt(idle) - System.currentTimeMillis();
+        Preconditions.checkState(untilTick <= 200, "Expecting lease to bring the next tick forward, next tick in %sms", untilTick);
+        ByteMessage redelivered = idle.receive(2);
+        Preconditions.checkState(redelivered != null && leased.getUUID().equals(redelivered.getUUID()), "Expecting lease to be redelivered on time");
+        Preconditions.checkState(scheduler.getIdleDelay(idle) == TickScheduler.BASE_DELAY, "Expecting backoff to reset once the channel had work");
+        idle.acknowledge(redelivered);
+    }
+    
+    public void testTickIsolation() throws Exception
+    {
+        RedisChannel broken = context.getChannel("integrationBrokenTest");
+        broken.send(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+        RedisConnection conn = context.getConnection();
+        try
+        {
+            // Every tick of a channel whose pending key has the wrong type fails
+            conn.exceptionOnError(true);
+            conn.sendCommand("SET %s:pending %s", broken.getInternalName(), "broken");
+        }
+        finally
+        {
+            context.releaseConnection(conn);
+        }
+        try
+        {
+            broken.tick();
+            throw new IllegalStateException("Expecting tick of broken channel to fail");
+        }
+        catch (IOException e)
+        {
+            // Expected
+        }
+        RedisChannel healthy = context.getChannel("integrationHealthyTest");
+        healthy.send(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+        ByteMessage leased = Preconditions.checkNotNull(healthy.receive(0, 200, TimeUnit.MILLISECONDS));
+        ByteMessage redelivered = healthy.receive(2);
+        Preconditions.checkState(redelivered != null && leased.getUUID().equals(redelivered.getUUID()), "Expecting other channels to keep ticking while one fails");
+        Preconditions.checkState(context.getTickScheduler().getIdleDelay(broken) > TickScheduler.BASE_DELAY, "Expecting failing channel to back off");
+        healthy.acknowledge(redelivered);
+    }
+    
+    public void testTickLease() throws Exception
+    {
+        ByteMessage message = RedisByteMessage.builder().bytes(SIMPLE_BYTES).delay(System.currentTimeMillis() + 50).build();
+        channel.sendAll(Arrays.asList(message, message));
+        Thread.sleep(100);
+        // Whether this tick or the background scheduler took it, the lease is now held by this context
+        Preconditions.checkState(channel.tick(1).isOwner(), "Expecting this context to take the tick lease");
+        InternalContext second = new InternalContext(new RedisConfiguration());
+        try
+        {
+            TickResult result = second.getChannel(channel.getName()).tick();
+            Preconditions.checkState(!result.isOwner() && !result.hasWorked(), "Expecting second client not to tick while the lease is held");
+            Preconditions.checkState(channel.tick().isOwner(), "Expecting lease holder to keep ticking");
+        }
+        finally
+        {
+            second.close();
+        }
+    }
+    
+    public void testRetire() throws Exception
+    {
+        channel.send(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+        Preconditions.checkState(!channel.tick().isRetired(), "Expecting channel with messages to stay registered");
+        channel.acknowledge(Preconditions.checkNotNull(channel.receive()));
+        Preconditions.checkState(channel.tick().isRetired(), "Expecting empty channel to be retired");
+        Preconditions.checkState(!context.getRegisteredChannels().contains(channel.getInternalName()), "Expecting retired channel to stop being ticked");
+        RedisConnection conn = context.getConnection();
+        try
+        {
+            Preconditions.checkState(conn.sendCommand("SISMEMBER %s %s", InternalContext.CHANNEL_REGISTRY, channel.getName()).getInteger() == 0, "Expecting retired channel to leave the registry");
+            channel.send(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+            Preconditions.checkState(conn.sendCommand("SISMEMBER %s %s", InternalContext.CHANNEL_REGISTRY, channel.getName()).getInteger() == 1, "Expecting sent channel to rejoin the registry");
+        }
+        finally
+        {
+            context.releaseConnection(conn);
+        }
+        Preconditions.checkState(context.getRegisteredChannels().contains(channel.getInternalName()), "Expecting sent channel to be ticked again");
+    }
+    
+    public void testReap() throws Exception
+    {
+        ByteMessage message = RedisByteMessage.builder().bytes(SIMPLE_BYTES).expiration(System.currentTimeMillis() + 100).build();
+        channel.sendAll(Arrays.asList(message, message, message));
+        ByteMessage leased = Preconditions.checkNotNull(channel.receive());
+        Thread.sleep(200);
+        // The background scheduler may reap some of these first, so only check the channel ends up empty
+        while (channel.tick().getRemaining() > 0)
+        {
+        }
+        Preconditions.checkState(channel.receive() == null, "Expecting expired messages to be skipped");
+        Preconditions.checkState(!channel.acknowledgeAll(Arrays.asList(leased)).get(0), "Expecting leased message to be reaped");
+    }
+    
+    public void testReleaseKeepsExpiration() throws Exception
+    {
+        channel.send(RedisByteMessage.builder().bytes(SIMPLE_BYTES).expiration(System.currentTimeMillis() + 200).build());
+        ByteMessage leased = Preconditions.checkNotNull(channel.receive());
+        channel.release(leased);
+        Thread.sleep(300);
+        Preconditions.checkState(channel.receive() == null, "Expecting released message to still expire");
+    }
+    
+    public void testBoundedTick() throws Exception
+    {
+        ByteMessage message = RedisByteMessage.builder().bytes(SIMPLE_BYTES).delay(System.currentTimeMillis() + 50).build();
+        channel.sendAll(Arrays.asList(message, message, message));
+        Thread.sleep(100);
+        // The background scheduler may tick this channel too, so only check that slices converge
+        int slices = 0;
+        while (channel.tick(2).getRemaining() > 0)
+        {
+            Preconditions.checkState(++slices < 3, "Expecting tick to catch up within two slices");
+        }
+        Preconditions.checkState(channel.receive(3, 0).size() == 3, "Expecting all delayed messages to be active");
+    }
+    
+    public void testExtendLease() throws Exception
+    {
+        ByteMessage message = RedisByteMessage.builder().bytes(SIMPLE_BYTES).build();
+        channel.send(message);
+        ByteMessage leased = channel.receive(0, 200, TimeUnit.MILLISECONDS);
+        Preconditions.checkState(leased != null, "Expecting leased message");
+        Preconditions.checkState(channel.extendLease(leased, 5000), "Expecting lease to be extended");
+        Thread.sleep(400);
         channel.tick();
+        Preconditions.checkState(channel.receive() == null, "Expecting extended message to stay leased");
+        channel.acknowledge(leased);
+        Preconditions.checkState(!channel.extendLeases(Arrays.asList(leased), 5000).get(0), "Expecting no lease after acknowledge");
+    }
+    
+    public void testTemporaryChannel() throws Exception
+    {
+        RedisChannel temporary = context.getTemporaryChannel("integrationTemporaryTest", 5000);
+        temporary.send(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+        Preconditions.checkState(!context.getRegisteredChannels().contains(temporary.getInternalName()), "Expecting temporary channel not to be ticked");
+        RedisConnection conn = context.getConnection();
+        try
+        {
+            long ttl = conn.sendCommand("PTTL %s:messages", temporary.getInternalName()).getInteger();
+            Preconditions.checkState(ttl > 0 && ttl <= 5000, "Expecting temporary channel keys to expire");
+            long registered = conn.sendCommand("SISMEMBER %s %s", InternalContext.CHANNEL_REGISTRY, temporary.getName()).getInteger();
+            Preconditions.checkState(registered == 0, "Expecting temporary channel not to be registered");
+        }
+        finally
+        {
+            context.releaseConnection(conn);
+        }
+        ByteMessage response = Preconditions.checkNotNull(temporary.receive());
+        temporary.acknowledge(response);
+    }
+    
+    public void testFastReply() throws Exception
+    {
+        byte[] pingBytes = context.getObjectMapper().writeValueAsBytes("PING");
+        byte[] pongBytes = context.getObjectMapper().writeValueAsBytes("PONG");
+        conversation.setFastReplies(true);
+        try
+        {
+            String claimCheck = conversation.put(RedisByteMessage.builder().bytes(pingBytes).build());
+            ByteMessage request = Preconditions.checkNotNull(conversation.take());
+            Map<String, Object> headers = new HashMap<>();
+            headers.put("type", "pong");
+            conversation.respond(request, RedisByteMessage.builder().bytes(pongBytes).headers(headers).build());
+            ByteMessage response = Preconditions.checkNotNull(conversation.wait(claimCheck, 1));
+            Preconditions.checkState(Arrays.equals(response.getBytes(), pongBytes), "Expecting pong bytes");
+            Preconditions.checkState("pong".equals(response.getHeaders().get("type")), "Expecting pong headers");
+            conversation.acknowledge(claimCheck, response);
+            Preconditions.checkState(conversation.wait(claimCheck) == null, "Expecting reply to be consumed by the pop");
+        }
+        finally
+        {
+            conversation.setFastReplies(false);
+        }
+    }
+    
+    public void testPutCollision() throws Exception
+    {
+        RedisConversation fixed = new RedisConversation(context, context.getChannel("integrationPutTest"), new Supplier<String>() {
+
+            @Override
+            public String get()
+            {
+                return "integrationFixedClaimCheck";
+            }
+        });
+        Preconditions.checkState("integrationFixedClaimCheck".equals(fixed.put(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build())), "Expecting supplied claim check");
+        try
+        {
+            fixed.put(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+            throw new IllegalStateException("Expecting held claim check to be refused");
+        }
+        catch (IllegalStateException e)
+        {
+            Preconditions.checkState("Unable to lock reply channel".equals(e.getMessage()), "Expecting lock failure");
+        }
+        Preconditions.checkState(fixed.take() != null && fixed.take() == null, "Expecting only the first request to be sent");
+    }
+    
+    public void testPutExpired() throws Exception
+    {
+        try
+        {
+            conversation.put(RedisByteMessage.builder().bytes(SIMPLE_BYTES).expiration(System.currentTimeMillis() - 1).build());
+            throw new IllegalStateException("Expecting expired request to be refused");
+        }
+        catch (IOException e)
+        {
+            // Expected
+        }
+        Preconditions.checkState(conversation.take() == null, "Expecting expired request not to be sent");
+    }
+    
+    public void testRequest() throws Exception
+    {
+        byte[] pingBytes = context.getObjectMapper().writeValueAsBytes("PING");
+        byte[] pongBytes = context.getObjectMapper().writeValueAsBytes("PONG");
+        ListenableFuture<ByteMessage> first = conversation.request(RedisByteMessage.builder().bytes(pingBytes).build());
+        ListenableFuture<ByteMessage> second = conversation.request(RedisByteMessage.builder().bytes(pongBytes).build());
+        ByteMessage firstRequest = Preconditions.checkNotNull(conversation.take(1));
+        ByteMessage secondRequest = Preconditions.checkNotNull(conversation.take(1));
+        // Respond out of order, each reply still finds its own request
+        conversation.respond(secondRequest, RedisByteMessage.builder().bytes(secondRequest.getBytes()).build());
+        conversation.respond(firstRequest, RedisByteMessage.builder().bytes(firstRequest.getBytes()).build());
+        Preconditions.checkState(Arrays.equals(first.get(5, TimeUnit.SECONDS).getBytes(), pingBytes), "Expecting reply to first request");
+        Preconditions.checkState(Arrays.equals(second.get(5, TimeUnit.SECONDS).getBytes(), pongBytes), "Expecting reply to second request");
+    }
+    
+    public void testRequestTimeout() throws Exception
+    {
+        ReplyDispatcher dispatcher = context.getReplyDispatcher();
+        int outstanding = dispatcher.getOutstanding();
+        ListenableFuture<ByteMessage> reply = conversation.request(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build(), 500, TimeUnit.MILLISECONDS);
+        try
+        {
+            reply.get(5, TimeUnit.SECONDS);
+            throw new IllegalStateException("Expecting unanswered request to time out");
+        }
+        catch (ExecutionException e)
+        {
+            Preconditions.checkState(e.getCause() instanceof IOException, "Expecting IOException on timeout");
+        }
+        Preconditions.checkState(dispatcher.getOutstanding() == outstanding, "Expecting timed out request to stop waiting");
+        // A late reply is dropped
+        ByteMessage request = Preconditions.checkNotNull(conversation.take(1));
+        conversation.respond(request, RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+    }
+    
+    public void testScatter() throws Exception
+    {
+        RedisConversation first = new RedisConversation(context, channel, null);
+        RedisConversation second = new RedisConversation(context, context.getChannel("integrationScatterTest"), null);
+        topic.subscribe("integrationTest");
+        topic.subscribe("integrationScatterTest");
+        try
+        {
+            ListenableFuture<List<ByteMessage>> all = topic.scatter(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build(), 0, 5, TimeUnit.SECONDS);
+            first.respond(Preconditions.checkNotNull(first.take(1)), RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+            second.respond(Preconditions.checkNotNull(second.take(1)), RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+            Preconditions.checkState(all.get(5, TimeUnit.SECONDS).size() == 2, "Expecting a reply from every subscriber");
+            
+            ListenableFuture<List<ByteMessage>> quorum = topic.scatter(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build(), 1, 5, TimeUnit.SECONDS);
+            first.respond(Preconditions.checkNotNull(first.take(1)), RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+            Preconditions.checkState(quorum.get(5, TimeUnit.SECONDS).size() == 1, "Expecting quorum of one");
+            second.respond(Preconditions.checkNotNull(second.take(1)), RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+            
+            ListenableFuture<List<ByteMessage>> deadline = topic.scatter(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build(), 0, 200, TimeUnit.MILLISECONDS);
+            first.respond(Preconditions.checkNotNull(first.take(1)), RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+            Preconditions.checkState(deadline.get(5, TimeUnit.SECONDS).size() == 1, "Expecting the replies received before the deadline");
+        }
+        finally
+        {
+            topic.unsubscribe("integrationTest");
+            topic.unsubscribe("integrationScatterTest");
+        }
+    }
+    
+    public void testListenerContainer() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(20);
+        final AtomicBoolean failedOnce = new AtomicBoolean();
+        ListenerContainer container = new ListenerContainer(channel, new ListenerContainer.MessageHandler() {
+
+            @Override
+            public void onMessage(ByteMessage message) throws Exception
+            {
+                if (failedOnce.compareAndSet(false, true))
+                {
+                    throw new IllegalStateException("Expecting this message to be redelivered");
+                }
+                latch.countDown();
+            }
+        }, null, 4);
+        for (int i = 0; i < 20; i++)
+        {
+            channel.send(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+        }
+        container.start();
+        try
+        {
+            Preconditions.checkState(latch.await(10, TimeUnit.SECONDS), "Expecting every message to be handled");
+        }
+        finally
+        {
+            container.close();
+        }
+        Preconditions.checkState(container.getInFlight() == 0, "Expecting no messages in flight");
+        Preconditions.checkState(channel.receive() == null, "Expecting every message to be acknowledged");
+    }
+    
+    public void testPublisher() throws Exception
+    {
+        byte[] pingBytes = context.getObjectMapper().writeValueAsBytes("PING");
+        for (int i = 0; i < 5; i++)
+        {
+            channel.send(RedisByteMessage.builder().bytes(pingBytes).build());
+        }
+        final LinkedBlockingQueue<Message<String>> delivered = new LinkedBlockingQueue<>();
+        final AtomicReference<Subscription> subscription = new AtomicReference<>();
+        channel.publisher(String.class).subscribe(new Subscriber<Message<String>>() {
+
+            @Override
+            public void onSubscribe(Subscription s)
+            {
+                subscription.set(s);
+                s.request(2);
+            }
+
+            @Override
+            public void onNext(Message<String> message)
+            {
+                delivered.add(message);
+            }
+
+            @Override
+            public void onError(Throwable t)
+            {
+                t.printStackTrace();
+            }
+
+            @Override
+            public void onComplete()
+            {
+            }
+        });
+        try
+        {
+            for (int i = 0; i < 2; i++)
+            {
+                Message<String> message = Preconditions.checkNotNull(delivered.poll(5, TimeUnit.SECONDS), "Expecting requested message");
+                Preconditions.checkState("PING".equals(message.getPayload()), "Expecting deserialized payload");
+                channel.acknowledge(message);
+            }
+            Preconditions.checkState(delivered.poll(200, TimeUnit.MILLISECONDS) == null, "Expecting no more than requested");
+            List<ByteMessage> rest = channel.receive(10, 0);
+            Preconditions.checkState(rest.size() == 3, "Expecting only requested messages to be leased");
+            channel.acknowledgeAll(rest);
+        }
+        finally
+        {
+            subscription.get().cancel();
+        }
+    }
+    
+    public void testPublisherFailingSubscriber() throws Exception
+    {
+        byte[] pingBytes = context.getObjectMapper().writeValueAsBytes("PING");
+        for (int i = 0; i < 3; i++)
+        {
+            channel.send(RedisByteMessage.builder().bytes(pingBytes).build());
+        }
+        final CountDownLatch thrown = new CountDownLatch(1);
+        final AtomicBoolean signalled = new AtomicBoolean();
+        channel.publisher(String.class).subscribe(new Subscriber<Message<String>>() {
+
+            @Override
+            public void onSubscribe(Subscription s)
+            {
+                s.request(3);
+            }
+
+            @Override
+            public void onNext(Message<String> message)
+            {
+                thrown.countDown();
+                throw new IllegalStateException("Failing subscriber");
+            }
+
+            @Override
+            public void onError(Throwable t)
+            {
+                signalled.set(true);
+            }
+
+            @Override
+            public void onComplete()
+            {
+                signalled.set(true);
+            }
+        });
+        Preconditions.checkState(thrown.await(5, TimeUnit.SECONDS), "Expecting a delivery");
+        Thread.sleep(200);
+        Preconditions.checkState(!signalled.get(), "Expecting a throwing subscriber not to be signalled");
+        List<ByteMessage> rest = channel.receive(10, 0);
+        Preconditions.checkState(rest.size() == 2, "Expecting undelivered messages to be released");
+        channel.acknowledgeAll(rest);
+    }
+    
+    public void testSharedPoller() throws Exception
+    {
+        final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+        List<Thread> waiters = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+        {
+            Thread waiter = new Thread(new Runnable() {
+
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        ByteMessage message = channel.receive(5);
+                        if (message != null)
+                        {
+                            received.add(message.getUUID());
+                            channel.acknowledge(message);
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            waiter.start();
+            waiters.add(waiter);
+        }
+        Thread.sleep(200);
+        for (int i = 0; i < 10; i++)
+        {
+            channel.send(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build());
+        }
+        for (Thread waiter : waiters)
+        {
+            waiter.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        Preconditions.checkState(new HashSet<>(received).size() == 10, "Expecting each waiter to receive a different message");
+        Preconditions.checkState(channel.receive() == null, "Expecting every message to be handed out");
+    }
+    
+    public void testPollerAfterClose() throws Exception
+    {
+        InternalContext closed = new InternalContext(new RedisConfiguration());
+        RedisChannel other = closed.getChannel("integrationClosedTest");
+        closed.close();
+        try
+        {
+            other.receive(1);
+            throw new IllegalStateException("Expecting blocking receive to be refused once the context is closed");
+        }
+        catch (IOException e)
+        {
+            // Expected
+        }
     }
     
     public void testPublish() throws Exception
@@ -126,6 +919,104 @@ public class ChannelIntegrationTest
         Preconditions.checkState(response == null, "Expecting no response");        
     }
     
+    public void testPublishAll() throws Exception
+    {
+        RedisChannel other = context.getChannel("integrationPublishTest");
+        topic.subscribe("integrationTest");
+        topic.subscribe("integrationPublishTest");
+        try
+        {
+            ByteMessage message = RedisByteMessage.builder().bytes(SIMPLE_BYTES).build();
+            ByteMessage expired = RedisByteMessage.builder().bytes(SIMPLE_BYTES).expiration(System.currentTimeMillis() - 1).build();
+            int nChannels = topic.publishAll(Arrays.asList(message, expired, message));
+            Preconditions.checkState(nChannels == 2, "Expecting two channels");
+            Preconditions.checkState(channel.receive(3, 0).size() == 2, "Expecting both unexpired messages on the first channel");
+            Preconditions.checkState(other.receive(3, 0).size() == 2, "Expecting both unexpired messages on the second channel");
+            Preconditions.checkState(topic.publishAsync(message).get() == 2, "Expecting async publish to reach both channels");
+            Preconditions.checkState(channel.receive() != null && other.receive() != null, "Expecting async published messages");
+        }
+        finally
+        {
+            topic.unsubscribe("integrationTest");
+            topic.unsubscribe("integrationPublishTest");
+        }
+    }
+    
+    public void testFanoutByReference() throws Exception
+    {
+        RedisChannel other = context.getChannel("integrationFanoutTest");
+        topic.subscribe("integrationTest");
+        topic.subscribe("integrationFanoutTest");
+        topic.setFanoutByReference(true);
+        try
+        {
+            Map<String, Object> headers = new HashMap<>();
+            headers.put("type", "fanout");
+            ByteMessage message = RedisByteMessage.builder().bytes(SIMPLE_BYTES).headers(headers).build();
+            Preconditions.checkState(topic.publish(message) == 2, "Expecting two channels");
+            ByteMessage first = Preconditions.checkNotNull(channel.receive());
+            ByteMessage second = Preconditions.checkNotNull(other.receive());
+            Preconditions.checkState(Arrays.equals(first.getBytes(), SIMPLE_BYTES) && Arrays.equals(second.getBytes(), SIMPLE_BYTES), "Expecting shared payload");
+            Preconditions.checkState("fanout".equals(second.getHeaders().get("type")), "Expecting shared headers");
+            channel.acknowledge(first);
+            Preconditions.checkState(_payloadCount() == 1, "Expecting payload to outlive the first acknowledge");
+            other.acknowledge(second);
+            Preconditions.checkState(_payloadCount() == 0, "Expecting payload deleted with the last reference");
+        }
+        finally
+        {
+            topic.setFanoutByReference(false);
+            topic.unsubscribe("integrationTest");
+            topic.unsubscribe("integrationFanoutTest");
+        }
+    }
+    
+    private long _payloadCount() throws Exception
+    {
+        RedisConnection conn = context.getConnection();
+        try
+        {
+            return conn.sendCommand("HLEN t:%s:payloads", topic.getName()).getInteger();
+        }
+        finally
+        {
+            context.releaseConnection(conn);
+        }
+    }
+    
+    public void testReapPayloads() throws Exception
+    {
+        RedisChannel orphan = context.getChannel("integrationOrphanTest");
+        topic.subscribe("integrationTest");
+        topic.subscribe("integrationOrphanTest");
+        topic.setFanoutByReference(true);
+        RedisConnection conn = context.getConnection();
+        try
+        {
+            conn.exceptionOnError(true);
+            Preconditions.checkState(topic.publish(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build()) == 2, "Expecting two channels");
+            // Keys deleted without acknowledging, as when a channel expires, leave a reference uncounted
+            conn.sendCommand("DEL %s:messages %s:active", orphan.getInternalName(), orphan.getInternalName());
+            Preconditions.checkState(topic.reapPayloads(System.currentTimeMillis(), 100) == 0, "Expecting payload still held by one channel");
+            channel.acknowledge(Preconditions.checkNotNull(channel.receive()));
+            Preconditions.checkState(_payloadCount() == 0, "Expecting corrected reference count to delete payload on acknowledge");
+            
+            Preconditions.checkState(topic.publish(RedisByteMessage.builder().bytes(SIMPLE_BYTES).build()) == 2, "Expecting two channels");
+            conn.sendCommand("DEL %s:messages %s:active", orphan.getInternalName(), orphan.getInternalName());
+            conn.sendCommand("DEL %s:messages %s:active", channel.getInternalName(), channel.getInternalName());
+            Preconditions.checkState(topic.reapPayloads(System.currentTimeMillis(), 100) == 1, "Expecting orphaned payload to be reaped");
+            Preconditions.checkState(_payloadCount() == 0, "Expecting no payloads left");
+            Preconditions.checkState(conn.sendCommand("SISMEMBER %s %s", InternalContext.TOPIC_REGISTRY, topic.getName()).getInteger() == 0, "Expecting topic without payloads to leave the registry");
+        }
+        finally
+        {
+            context.releaseConnection(conn);
+            topic.setFanoutByReference(false);
+            topic.unsubscribe("integrationTest");
+            topic.unsubscribe("integrationOrphanTest");
+        }
+    }
+    
     public void testConversation() throws Exception
     {
         byte[] pingBytes = context.getObjectMapper().writeValueAsBytes("PING");
@@ -159,6 +1050,21 @@ public class ChannelIntegrationTest
             System.out.println("Testing receive()");
             test.testReceive();
             _flush(controlChannel);
+            System.out.println("Testing blocking receive()");
+            test.testBlockingReceive();
+            _flush(controlChannel);
+            System.out.println("Testing sendAll()");
+            test.testSendAll();
+            _flush(controlChannel);
+            System.out.println("Testing batch receive()");
+            test.testBatchReceive();
+            _flush(controlChannel);
+            System.out.println("Testing headers");
+            test.testHeaders();
+            _flush(controlChannel);
+            System.out.println("Testing header formats");
+            test.testHeaderFormats();
+            _flush(controlChannel);
             test.testDelayedSendReceive();
             _flush(controlChannel);
             test.testPastDelayedSendReceive();
@@ -174,13 +1080,103 @@ public class ChannelIntegrationTest
             _flush(controlChannel);
             test.testSendReceiveAck();
             _flush(controlChannel);
+            System.out.println("Testing batch release and acknowledge");
+            test.testBatchReleaseAck();
+            _flush(controlChannel);
+            System.out.println("Testing acknowledge of queued messages");
+            test.testAcknowledgeQueued();
+            _flush(controlChannel);
+            System.out.println("Testing async channel");
+            test.testAsync();
+            _flush(controlChannel);
+            System.out.println("Testing auto-pipelining");
+            test.testAutoPipelining();
+            _flush(controlChannel);
+            System.out.println("Testing pipeline close");
+            test.testPipelineClose();
+            _flush(controlChannel);
+            System.out.println("Testing storage migration");
+            test.testMigrate();
+            _flush(controlChannel);
+            System.out.println("Testing legacy receive before migration");
+            test.testLegacyReceive();
+            _flush(controlChannel);
             System.out.println("Testing tick");
             test.testTick();
             _flush(controlChannel);
+            System.out.println("Testing tick backoff");
+            test.testTickBackoff();
+            _flush(controlChannel);
+            System.out.println("Testing tick isolation");
+            test.testTickIsolation();
+            _flush(controlChannel);
+            System.out.println("Testing bounded tick");
+            test.testBoundedTick();
+            _flush(controlChannel);
+            System.out.println("Testing tick lease");
+            test.testTickLease();
+            _flush(controlChannel);
+            System.out.println("Testing channel retirement");
+            test.testRetire();
+            _flush(controlChannel);
+            System.out.println("Testing reaper");
+            test.testReap();
+            _flush(controlChannel);
+            System.out.println("Testing release keeps expiration");
+            test.testReleaseKeepsExpiration();
+            _flush(controlChannel);
+            System.out.println("Testing lease extension");
+            test.testExtendLease();
+            _flush(controlChannel);
+            System.out.println("Testing temporary channels");
+            test.testTemporaryChannel();
+            _flush(controlChannel);
+            System.out.println("Testing listener containers");
+            test.testListenerContainer();
+            _flush(controlChannel);
+            System.out.println("Testing reactive publisher");
+            test.testPublisher();
+            _flush(controlChannel);
+            System.out.println("Testing reactive publisher with a failing subscriber");
+            test.testPublisherFailingSubscriber();
+            _flush(controlChannel);
+            System.out.println("Testing shared blocking receive");
+            test.testSharedPoller();
+            _flush(controlChannel);
+            System.out.println("Testing blocking receive after close");
+            test.testPollerAfterClose();
+            _flush(controlChannel);
             System.out.println("Testing topics");
             test.testPublish();
+            System.out.println("Testing batch publish");
+            test.testPublishAll();
+            _flush(controlChannel);
+            System.out.println("Testing scatter-gather");
+            test.testScatter();
+            _flush(controlChannel);
+            System.out.println("Testing fan-out by reference");
+            test.testFanoutByReference();
+            _flush(controlChannel);
+            System.out.println("Testing payload reaping");
+            test.testReapPayloads();
+            _flush(controlChannel);
             System.out.println("Testing conversations");
             test.testConversation();
+            _flush(controlChannel);
+            System.out.println("Testing fast replies");
+            test.testFastReply();
+            _flush(controlChannel);
+            System.out.println("Testing claim check collisions");
+            test.testPutCollision();
+            _flush(controlChannel);
+            System.out.println("Testing expired put");
+            test.testPutExpired();
+            _flush(controlChannel);
+            System.out.println("Testing multiplexed requests");
+            test.testRequest();
+            System.out.println("Testing request timeout");
+            test.testRequestTimeout();
+            _flush(controlChannel);
             System.out.println("Testing complete");
         }
         finally
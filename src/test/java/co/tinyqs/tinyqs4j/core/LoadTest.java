@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
@@ -52,6 +53,10 @@ public class LoadTest
         _testB();
         _testC();
         _testD();
+        _testE();
+        _testF();
+        _testG();
+        _testH();
     }
     
     private void _testA() throws Exception
@@ -145,6 +150,124 @@ public class LoadTest
         System.out.println("-- Complete --\r\n");
     }
     
+    public void _testE() throws Exception
+    {
+        System.out.println("-- 200,000 32 byte messages simultaneously, batch receive --");
+        RedisChannel channel = (RedisChannel) datastore.getChannel("test");
+        
+        for (int i = 0; i < 5; i++)
+        {
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            List<ListenableFuture<Void>> futures = new ArrayList<>(200_500);
+            for (int j = 0; j < 200_000; j++)
+            {
+                futures.add(clientService.submit(ChannelSend.randomMessage(32, channel))); 
+            }
+            for (int j = 0; j < 200_000 / 400; j++)
+            {
+                futures.add(clientService.submit(new ChannelBatchReceive(channel, 400)));
+            }
+            ListenableFuture<?> done = Futures.allAsList(futures);
+            done.get();            
+            System.out.println("Fully complete in " + stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        }
+        System.out.println("-- Complete --\r\n");
+    }
+    
+    public void _testF() throws Exception
+    {
+        System.out.println("-- 20,000 1k messages simultaneously, auto-pipelined --");
+        RedisDatastore redisDatastore = (RedisDatastore) datastore;
+        redisDatastore.context.setAutoPipelining(true);
+        try
+        {
+            _testB();
+        }
+        finally
+        {
+            redisDatastore.context.setAutoPipelining(false);
+        }
+    }
+    
+    public void _testG() throws Exception
+    {
+        System.out.println("-- Receive/acknowledge 1,000 messages at increasing backlog, up to 1,000,000 queued --");
+        RedisChannel channel = (RedisChannel) datastore.getChannel("backlog");
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        List<ByteMessage> batch = new ArrayList<>(1000);
+        for (int i = 0; i < 1000; i++)
+        {
+            batch.add(RedisByteMessage.builder().bytes(bytes).build());
+        }
+        
+        int queued = 0;
+        for (int target : new int[] {1_000, 10_000, 100_000, 1_000_000})
+        {
+            while (queued < target)
+            {
+                channel.sendAll(batch);
+                queued += batch.size();
+            }
+            // Lease and acknowledge from the head, then release and acknowledge while queued
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            List<ByteMessage> received = new ArrayList<>(1000);
+            for (int i = 0; i < 1000; i++)
+            {
+                ByteMessage message = channel.receive();
+                channel.acknowledge(message);
+                received.add(channel.receive());
+            }
+            long ackMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            channel.releaseAll(received);
+            stopwatch = Stopwatch.createStarted();
+            for (ByteMessage message : received)
+            {
+                channel.acknowledge(message);
+            }
+            queued -= 2000;
+            System.out.println(target + " queued: receive/acknowledge " + ackMillis + "ms, acknowledge queued " + stopwatch.elapsed(TimeUnit.MILLISECONDS) + "ms");
+        }
+        List<ByteMessage> remaining = channel.receive(1000, 0);
+        while (!remaining.isEmpty())
+        {
+            channel.acknowledgeAll(remaining);
+            remaining = channel.receive(1000, 0);
+        }
+        System.out.println("-- Complete --\r\n");
+    }
+    
+    public void _testH() throws Exception
+    {
+        System.out.println("-- 200,000 32 byte messages simultaneously, listener container --");
+        RedisChannel channel = (RedisChannel) datastore.getChannel("test");
+        
+        for (int i = 0; i < 5; i++)
+        {
+            final CountDownLatch latch = new CountDownLatch(200_000);
+            ListenerContainer container = new ListenerContainer(channel, new ListenerContainer.MessageHandler() {
+
+                @Override
+                public void onMessage(ByteMessage message)
+                {
+                    latch.countDown();
+                }
+            });
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            container.start();
+            List<ListenableFuture<Void>> futures = new ArrayList<>(200_000);
+            for (int j = 0; j < 200_000; j++)
+            {
+                futures.add(clientService.submit(ChannelSend.randomMessage(32, channel))); 
+            }
+            Futures.allAsList(futures).get();
+            latch.await();
+            System.out.println("Fully complete in " + stopwatch.elapsed(TimeUnit.MILLISECONDS));
+            container.close();
+        }
+        System.out.println("-- Complete --\r\n");
+    }
+    
     public static void main(String[] args) throws Exception
     {
         LoadTest test = new LoadTest();
@@ -219,4 +342,31 @@ public class LoadTest
         }
         
     }
+    
+    private static class ChannelBatchReceive implements Callable<Void>
+    {
+        private final RedisChannel channel;
+        private final int count;
+        
+        ChannelBatchReceive(RedisChannel channel, int count)
+        {
+            this.channel = channel;
+            this.count = count;
+        }
+        
+        @Override
+        public Void call() throws Exception
+        {
+            int received = 0;
+            while (received < count)
+            {
+                for (ByteMessage message : channel.receive(count - received, 60))
+                {
+                    channel.acknowledge(message);
+                    received++;
+                }
+            }
+            return null;
+        }
+    }
 }